@@ -0,0 +1,95 @@
+package bench;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CSVReader line conversion on rows already in memory, so the numbers leave out the file system and the
+// thread pool. legacySplit is the split + String.format loop CSVReader used before the chunked converter.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvConversionBenchmark {
+    private static final Class<?> CHUNK_CONVERTER = LabClasses.load("CSVReader$ChunkConverter");
+    private static final MethodHandle CONVERT_LINE = LabClasses.instanceMethod(CHUNK_CONVERTER, "convertLine",
+            byte[].class, int.class, long.class, ByteArrayOutputStream.class);
+
+    @Param({ "500", "100000", "1000000" })
+    public int rows;
+
+    @Param({ "2" })
+    public int dimension;
+
+    // Output of the converter: the KMeans text format or -D binary=true records
+    @Param({ "false", "true" })
+    public boolean binary;
+
+    private byte[][] csv;
+    private String[] csvLines;
+    private Object converter;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() throws Exception {
+        csv = Datasets.csvRows(rows, dimension);
+        csvLines = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            csvLines[i] = new String(csv[i], StandardCharsets.US_ASCII);
+        }
+        Configuration conf = new Configuration();
+        converter = LabClasses.newInstance(CHUNK_CONVERTER,
+                new Class<?>[] { Configuration.class, FileSystem.class, Path.class, long.class, long.class,
+                        boolean.class, int.class },
+                conf, FileSystem.getLocal(conf), new Path("points.csv"), 0L, 0L, binary, dimension);
+        out = new ByteArrayOutputStream(rows * (dimension * 16 + 8));
+    }
+
+    @Benchmark
+    public int convertLine() throws Throwable {
+        out.reset();
+        for (int i = 0; i < rows; i++) {
+            CONVERT_LINE.invoke(converter, csv[i], csv[i].length, (long) i, out);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public int legacySplit() {
+        out.reset();
+        StringBuilder sb = new StringBuilder();
+        for (String line : csvLines) {
+            String[] values = line.split(",");
+            sb.setLength(0);
+            for (int i = 1; i < values.length; i++) {
+                if (i > 1) {
+                    sb.append(' ');
+                }
+                sb.append(String.format(Locale.ROOT, "%.9f", Double.parseDouble(values[i].trim())));
+            }
+            sb.append('\n');
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.size();
+    }
+}
@@ -0,0 +1,114 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Random;
+
+// Synthetic inputs shaped like the lab data, always drawn from the same seed so numbers stay comparable
+// between runs. 2DPoints.csv has 500 rows; the benchmarks take the row count as a parameter.
+public final class Datasets {
+    public static final String[] CLASSES = { "business", "entertainment", "politics", "sport", "tech" };
+    private static final long SEED = 20240501L;
+
+    private Datasets() {
+    }
+
+    // KMeans text input: "x y ..." with the 9 decimals CSVReader writes
+    public static String[] pointLines(int rows, int dimension) {
+        Random random = new Random(SEED);
+        String[] lines = new String[rows];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            sb.setLength(0);
+            for (int d = 0; d < dimension; d++) {
+                if (d > 0) {
+                    sb.append(' ');
+                }
+                sb.append(String.format(Locale.ROOT, "%.9f", random.nextDouble() * 2 - 0.5));
+            }
+            lines[i] = sb.toString();
+        }
+        return lines;
+    }
+
+    // CSVReader input rows (no header): "label,x1,x2,..."
+    public static byte[][] csvRows(int rows, int dimension) {
+        String[] points = pointLines(rows, dimension);
+        byte[][] csv = new byte[rows][];
+        for (int i = 0; i < rows; i++) {
+            csv[i] = ((i % 3 + 1) + "," + points[i].replace(' ', ',')).getBytes(StandardCharsets.US_ASCII);
+        }
+        return csv;
+    }
+
+    // Document names "class.NNN", id i + 1 is the i-th name as in bbc.docs
+    public static String[] docNames(int docs) {
+        String[] names = new String[docs];
+        for (int i = 0; i < docs; i++) {
+            names[i] = CLASSES[i % CLASSES.length] + "." + String.format(Locale.ROOT, "%03d", i / CLASSES.length + 1);
+        }
+        return names;
+    }
+
+    public static String[] termNames(int terms) {
+        String[] names = new String[terms];
+        for (int i = 0; i < terms; i++) {
+            names[i] = "term" + (i + 1);
+        }
+        return names;
+    }
+
+    // task_1_4.mtx lines "termId<TAB>docId<TAB>tfidf", grouped by document like the real matrix
+    public static String[] matrixLines(int rows, int docs, int terms) {
+        Random random = new Random(SEED);
+        String[] lines = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            int docId = (int) ((long) i * docs / rows) + 1;
+            lines[i] = (random.nextInt(terms) + 1) + "\t" + docId + "\t"
+                    + String.format(Locale.ROOT, "%.6f", random.nextDouble());
+        }
+        return lines;
+    }
+
+    // Writes the same datasets as files for end-to-end runs of the jobs:
+    //   <dir>/points.csv                       CSVReader input, 2DPoints.csv layout
+    //   <dir>/tfidf/{bbc.docs,bbc.terms,task_1_4.mtx}  HighestAverage input
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: Datasets <outputDir> <rows> [dimension]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        int rows = Integer.parseInt(args[1]);
+        int dimension = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        Files.createDirectories(dir.resolve("tfidf"));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve("points.csv"), StandardCharsets.UTF_8)) {
+            writer.write("class");
+            for (int d = 1; d <= dimension; d++) {
+                writer.write(",x" + d);
+            }
+            writer.newLine();
+            for (byte[] row : csvRows(rows, dimension)) {
+                writer.write(new String(row, StandardCharsets.US_ASCII));
+                writer.newLine();
+            }
+        }
+
+        int docs = 2225;
+        int terms = 9635;
+        Files.write(dir.resolve("tfidf/bbc.docs"), java.util.Arrays.asList(docNames(docs)), StandardCharsets.UTF_8);
+        Files.write(dir.resolve("tfidf/bbc.terms"), java.util.Arrays.asList(termNames(terms)), StandardCharsets.UTF_8);
+        try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve("tfidf/task_1_4.mtx"), StandardCharsets.UTF_8)) {
+            for (String line : matrixLines(rows, docs, terms)) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package bench;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.openjdk.jmh.infra.Blackhole;
+
+// In-process task contexts, so Mapper.run and Reducer.run see their records without a job
+final class HadoopContexts {
+    private HadoopContexts() {
+    }
+
+    // Mapper context over an in-memory list of input records
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static Mapper.Context mapContext(Configuration conf, List<?> keys, List<?> values, Blackhole bh)
+            throws IOException, InterruptedException {
+        MapContextImpl context = new MapContextImpl(conf, new TaskAttemptID(), new ListReader(keys, values),
+                new BlackholeWriter(bh), null, new TaskAttemptContextImpl.DummyReporter(), null);
+        return new WrappedMapper().getMapContext(context);
+    }
+
+    // Reducer context over records already serialized and sorted by key
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static Reducer.Context reduceContext(Configuration conf, SerializedRecords records, Class<?> keyClass,
+            Class<?> valueClass, Blackhole bh) throws IOException, InterruptedException {
+        ReduceContextImpl context = new ReduceContextImpl(conf, new TaskAttemptID(), records.iterator(),
+                new GenericCounter(), new GenericCounter(), new BlackholeWriter(bh), null,
+                new TaskAttemptContextImpl.DummyReporter(),
+                org.apache.hadoop.io.WritableComparator.get(keyClass.asSubclass(
+                        org.apache.hadoop.io.WritableComparable.class)), keyClass, valueClass);
+        return new WrappedReducer().getReducerContext(context);
+    }
+
+    // Key/value pairs in the serialized form the shuffle hands to a reducer
+    static final class SerializedRecords {
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private int[] offsets = new int[1024];
+        private int count;
+
+        void add(Writable key, Writable value) throws IOException {
+            if (3 * count + 3 > offsets.length) {
+                offsets = java.util.Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[3 * count] = buffer.getLength();
+            key.write(buffer);
+            offsets[3 * count + 1] = buffer.getLength();
+            value.write(buffer);
+            offsets[3 * count + 2] = buffer.getLength();
+            count++;
+        }
+
+        RawKeyValueIterator iterator() {
+            return new RawKeyValueIterator() {
+                private final DataInputBuffer key = new DataInputBuffer();
+                private final DataInputBuffer value = new DataInputBuffer();
+                private int next;
+
+                @Override
+                public DataInputBuffer getKey() {
+                    return key;
+                }
+
+                @Override
+                public DataInputBuffer getValue() {
+                    return value;
+                }
+
+                @Override
+                public boolean next() {
+                    if (next == count) {
+                        return false;
+                    }
+                    int keyStart = offsets[3 * next];
+                    int valueStart = offsets[3 * next + 1];
+                    int end = offsets[3 * next + 2];
+                    key.reset(buffer.getData(), keyStart, valueStart - keyStart);
+                    value.reset(buffer.getData(), valueStart, end - valueStart);
+                    next++;
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public Progress getProgress() {
+                    return new Progress();
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final class ListReader extends RecordReader {
+        private final List<?> keys;
+        private final List<?> values;
+        private int next = -1;
+
+        ListReader(List<?> keys, List<?> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            return ++next < keys.size();
+        }
+
+        @Override
+        public Object getCurrentKey() {
+            return keys.get(next);
+        }
+
+        @Override
+        public Object getCurrentValue() {
+            return values.get(next);
+        }
+
+        @Override
+        public float getProgress() {
+            return keys.isEmpty() ? 1 : next / (float) keys.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final class BlackholeWriter extends RecordWriter {
+        private final Blackhole bh;
+
+        BlackholeWriter(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(Object key, Object value) {
+            bh.consume(key);
+            bh.consume(value);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+}
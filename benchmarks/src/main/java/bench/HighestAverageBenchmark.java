@@ -0,0 +1,144 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// HighestAverage task code run through Mapper.run / Reducer.run on in-process contexts: the mapper over
+// task_1_4.mtx lines (line parsing and the doc id lookup included), the reducer over the per-class
+// partials of those lines. Setup, which loads the id dictionaries, is part of every operation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HighestAverageBenchmark {
+    private static final int DOCS = 2225;
+    private static final int TERMS = 9635;
+    private static final Class<?> AVERAGE_MAPPER = LabClasses.load("HighestAverage$AverageMapper");
+    private static final Class<?> AVERAGE_REDUCER = LabClasses.load("HighestAverage$AverageReducer");
+    private static final Class<?> TERM_PARTIAL = LabClasses.load("HighestAverage$TermPartialWritable");
+    private static final Class<?> ID_DICTIONARY = LabClasses.load("HighestAverage$IdDictionary");
+    private static final MethodHandle FROM_MAP = LabClasses.staticMethod(ID_DICTIONARY, "fromMap", Map.class);
+    private static final MethodHandle WRITE_BINARY =
+            LabClasses.instanceMethod(ID_DICTIONARY, "writeBinary", FileSystem.class, Path.class);
+
+    @Param({ "500", "100000", "1000000" })
+    public int rows;
+
+    private java.io.File workDir;
+    private Configuration conf;
+    private List<LongWritable> lineKeys;
+    private List<Text> lines;
+    private HadoopContexts.SerializedRecords partials;
+
+    @Setup
+    public void setup() throws Throwable {
+        workDir = Files.createTempDirectory("highest-average-bench").toFile();
+        conf = new Configuration();
+        conf.set("input", workDir.getPath());
+        FileSystem fs = FileSystem.getLocal(conf);
+        writeDictionary(fs, Datasets.docNames(DOCS), new Path(workDir.getPath(), "docIdMap.bin"));
+        writeDictionary(fs, Datasets.termNames(TERMS), new Path(workDir.getPath(), "termIdMap.bin"));
+
+        lineKeys = new ArrayList<>(rows);
+        lines = new ArrayList<>(rows);
+        long offset = 0;
+        for (String line : Datasets.matrixLines(rows, DOCS, TERMS)) {
+            lineKeys.add(new LongWritable(offset));
+            lines.add(new Text(line));
+            offset += line.length() + 1;
+        }
+
+        // What the mappers emit for the same lines, sorted by class as the shuffle would hand it over
+        String[] docNames = Datasets.docNames(DOCS);
+        List<String[]> records = new ArrayList<>(rows);
+        for (Text line : lines) {
+            String[] parts = line.toString().split("\t");
+            String className = docNames[Integer.parseInt(parts[1]) - 1].split("\\.")[0];
+            records.add(new String[] { className, parts[0], parts[2] });
+        }
+        Collections.sort(records, (a, b) -> a[0].compareTo(b[0]));
+        partials = new HadoopContexts.SerializedRecords();
+        Writable partial = (Writable) TERM_PARTIAL.getDeclaredConstructor().newInstance();
+        MethodHandle set = LabClasses.instanceMethod(TERM_PARTIAL, "set", int.class, double.class, long.class);
+        Text key = new Text();
+        for (String[] record : records) {
+            key.set(record[0]);
+            set.invoke(partial, Integer.parseInt(record[1]), Double.parseDouble(record[2]), 1L);
+            partials.add(key, partial);
+        }
+    }
+
+    private static void writeDictionary(FileSystem fs, String[] names, Path path) throws Throwable {
+        Map<String, Integer> nameToId = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            nameToId.put(names[i], i + 1);
+        }
+        WRITE_BINARY.invoke(FROM_MAP.invoke(nameToId), fs, path);
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtil.fullyDelete(workDir);
+    }
+
+    // Only the reducer ranks terms, so the engine is a parameter of its benchmark alone
+    @State(Scope.Benchmark)
+    public static class ReducerEngine {
+        // Ranking engine of the reducer, exact totals or -D top_engine=sketch
+        @Param({ "exact", "sketch" })
+        public String topEngine;
+
+        Configuration conf;
+
+        @Setup
+        public void setup(HighestAverageBenchmark benchmark) {
+            conf = new Configuration(benchmark.conf);
+            conf.set("top_engine", topEngine);
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public void averageMapper(Blackhole bh) throws Exception {
+        Mapper mapper = (Mapper) AVERAGE_MAPPER.getDeclaredConstructor().newInstance();
+        mapper.run(HadoopContexts.mapContext(conf, lineKeys, lines, bh));
+    }
+
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public void averageReducer(ReducerEngine engine, Blackhole bh) throws Exception {
+        Reducer reducer = (Reducer) AVERAGE_REDUCER.getDeclaredConstructor().newInstance();
+        reducer.run(HadoopContexts.reduceContext(engine.conf, partials, Text.class, TERM_PARTIAL, bh));
+    }
+}
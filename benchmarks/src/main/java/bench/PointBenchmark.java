@@ -0,0 +1,79 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// KMeans.Point hot paths, one pass over the whole dataset per operation
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointBenchmark {
+    private static final Class<?> POINT = LabClasses.load("KMeans$Point");
+    private static final MethodHandle FROM_STRING = LabClasses.staticMethod(POINT, "fromString", String.class);
+    private static final MethodHandle EUCLIDEAN_DISTANCE =
+            LabClasses.staticMethod(POINT, "euclideanDistance", POINT, POINT);
+    private static final MethodHandle COMPUTE_CENTROID = LabClasses.staticMethod(POINT, "computeCentroid", List.class);
+
+    // 500 is the size of 2DPoints.csv; pass -p rows=20000000 (and a larger -Xmx) for the big end
+    @Param({ "500", "100000", "1000000" })
+    public int rows;
+
+    @Param({ "2" })
+    public int dimension;
+
+    private String[] lines;
+    private List<Object> points;
+    private Object[] centroids;
+
+    @Setup
+    public void setup() throws Throwable {
+        lines = Datasets.pointLines(rows, dimension);
+        points = new ArrayList<>(rows);
+        for (String line : lines) {
+            points.add(FROM_STRING.invoke(line));
+        }
+        centroids = new Object[] { points.get(0), points.get(rows / 2), points.get(rows - 1) };
+    }
+
+    @Benchmark
+    public void fromString(Blackhole bh) throws Throwable {
+        for (String line : lines) {
+            bh.consume(FROM_STRING.invoke(line));
+        }
+    }
+
+    // Distance of every point to three centroids, as one Lloyd assignment with k = 3
+    @Benchmark
+    public double euclideanDistance() throws Throwable {
+        double sum = 0;
+        for (Object point : points) {
+            for (Object centroid : centroids) {
+                sum += (double) EUCLIDEAN_DISTANCE.invoke(point, centroid);
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Object computeCentroid() throws Throwable {
+        return COMPUTE_CENTROID.invoke((Object) points);
+    }
+}
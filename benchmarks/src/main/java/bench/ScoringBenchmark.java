@@ -0,0 +1,96 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// KMeans.ScoringModel, one call per operation. The model is shared by all benchmark threads
+// (-t 8 for eight callers), the batch buffers belong to each thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoringBenchmark {
+    private static final Class<?> POINT = LabClasses.load("KMeans$Point");
+    private static final Class<?> MODEL = LabClasses.load("KMeans$ScoringModel");
+    private static final MethodHandle FROM_STRING = LabClasses.staticMethod(POINT, "fromString", String.class);
+    private static final MethodHandle ASSIGN = LabClasses.instanceMethod(MODEL, "assign", double[].class);
+    private static final MethodHandle ASSIGN_BATCH =
+            LabClasses.instanceMethod(MODEL, "assign", double[].class, int[].class);
+
+    @Param({ "3", "100" })
+    public int k;
+
+    @Param({ "2" })
+    public int dimension;
+
+    @Param({ "256" })
+    public int batch;
+
+    private Object model;
+    private double[][] points;
+
+    @Setup
+    public void setup() throws Throwable {
+        // Centroids are the first k points of a dataset, the scored points come after them
+        String[] lines = Datasets.pointLines(k + 4096, dimension);
+        List<Object> centroids = new ArrayList<>(k);
+        for (int i = 0; i < k; i++) {
+            centroids.add(FROM_STRING.invoke(lines[i]));
+        }
+        model = LabClasses.newInstance(MODEL, new Class<?>[] { List.class }, centroids);
+        points = new double[lines.length - k][dimension];
+        for (int i = 0; i < points.length; i++) {
+            String[] values = lines[k + i].trim().split("\\s+");
+            for (int d = 0; d < dimension; d++) {
+                points[i][d] = Double.parseDouble(values[d]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        int next;
+        double[] batchPoints;
+        int[] batchClusters;
+
+        @Setup
+        public void setup(ScoringBenchmark benchmark) {
+            batchPoints = new double[benchmark.batch * benchmark.dimension];
+            batchClusters = new int[benchmark.batch];
+            for (int i = 0; i < benchmark.batch; i++) {
+                double[] point = benchmark.points[i % benchmark.points.length];
+                System.arraycopy(point, 0, batchPoints, i * benchmark.dimension, benchmark.dimension);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object assign(Caller caller) throws Throwable {
+        double[] point = points[caller.next];
+        caller.next = (caller.next + 1) % points.length;
+        return ASSIGN.invoke(model, point);
+    }
+
+    // Whole batch per operation, divide by batch for the cost of one point
+    @Benchmark
+    public int[] assignBatch(Caller caller) throws Throwable {
+        ASSIGN_BATCH.invoke(model, caller.batchPoints, caller.batchClusters);
+        return caller.batchClusters;
+    }
+}
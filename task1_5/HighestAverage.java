@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -7,91 +8,1151 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.Collections;
+import java.util.Arrays;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.chain.ChainReducer;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class HighestAverage {
-    private static Map<String, Integer> termIdMap;
-    private static Map<String, Integer> docIdMap;
+	// Counters of the averaging job. The *_MILLIS ones add up over all tasks: loading the id dictionaries
+	// in setup, the map loop (reading the input included) and the reduce loop.
+	public enum AverageCounter {
+		PARSE_FAILURES, DICTIONARY_MISSES, SETUP_MILLIS, MAP_MILLIS, REDUCE_MILLIS
+	}
+	// Counter group with the number of distinct terms averaged for each class, named after the class. Each
+	// counter counts against mapreduce.job.counters.max, so only the first classes in name order get their
+	// own counter and the others add up under OTHER_CLASSES.
+	private static final String TERMS_PER_CLASS = "Terms per class";
+	private static final String OTHER_CLASSES = "(other classes)";
+	private static final int MAX_CLASS_COUNTERS = 50;
+	// Named output of the reducers with the merged (class, term) partials kept under -D state_dir
+	private static final String STATE_OUTPUT = "state";
+
+    public static class AverageMapper extends Mapper<LongWritable, Text, Text, TermPartialWritable> {
+		private IdDictionary docNames;
+		private final Text className = new Text();
+		private final TermPartialWritable partial = new TermPartialWritable();
+		private long mapStart;
 
-    public static class AverageMapper extends Mapper<LongWritable, Text, Text, Text> {
-	
 		@Override
 		protected void setup(Context context) throws IOException, InterruptedException {
-			Configuration conf = context.getConfiguration();
-			FileSystem fs = FileSystem.get(conf);
-			Path docIdMapPath = new Path(conf.get("input") + "/" + "docIdMap.txt");
-			Path termIdMapPath = new Path(conf.get("input") + "/" + "termIdMap.txt");
-			docIdMap = new HashMap<>();
-			termIdMap = new HashMap<>();
+			long start = System.nanoTime();
+			// Prefer the binary sidecars written by main, fall back to the text maps
+			docNames = IdDictionary.loadShared(context.getConfiguration(), "docIdMap");
+			context.getCounter(AverageCounter.SETUP_MILLIS).increment(millisSince(start));
+			mapStart = System.nanoTime();
+		}
 
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(docIdMapPath)))) {
-				String line;
-				while ((line = br.readLine()) != null) {
-					String[] parts = line.split(",");
-					if (parts.length == 2) {
-						String key = parts[0];
-					int value = Integer.parseInt(parts[1]);
-					docIdMap.put(key, value);
-					} 
+        @Override
+        protected void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            String[] parts = value.toString().split("\\t");
+			int docId;
+			int termId;
+			double tfidf;
+			// Lines that are not "termId<TAB>docId<TAB>score" are counted and skipped
+			try {
+				docId = Integer.parseInt(parts[1]);
+				tfidf = Double.parseDouble(parts[2]);
+				termId = Integer.parseInt(parts[0].trim());
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				context.getCounter(AverageCounter.PARSE_FAILURES).increment(1);
+				return;
+			}
+			String fullDocName = getFullDocName(docId, docNames);
+			if (fullDocName == null) {
+				context.getCounter(AverageCounter.DICTIONARY_MISSES).increment(1);
+				return;
+			}
+			className.set(fullDocName.split("\\.")[0]);
+
+			// Ship the term id with a (sum, count) partial, names are resolved in the reducer
+			partial.set(termId, tfidf, 1);
+            context.write(className, partial);
+        }
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			context.getCounter(AverageCounter.MAP_MILLIS).increment(millisSince(mapStart));
+		}
+    }
+
+	// AverageMapper for the binary matrix: one record is a document row, its class is looked up once
+	public static class SparseRowMapper extends Mapper<IntWritable, SparseRowWritable, Text, TermPartialWritable> {
+		private IdDictionary docNames;
+		private final Text className = new Text();
+		private final TermPartialWritable partial = new TermPartialWritable();
+		private long mapStart;
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			long start = System.nanoTime();
+			docNames = IdDictionary.loadShared(context.getConfiguration(), "docIdMap");
+			context.getCounter(AverageCounter.SETUP_MILLIS).increment(millisSince(start));
+			mapStart = System.nanoTime();
+		}
+
+		@Override
+		protected void map(IntWritable docId, SparseRowWritable row, Context context)
+				throws IOException, InterruptedException {
+			String fullDocName = getFullDocName(docId.get(), docNames);
+			if (fullDocName == null) {
+				// One miss per entry, as AverageMapper counts it on the text matrix
+				context.getCounter(AverageCounter.DICTIONARY_MISSES).increment(row.size());
+				return;
+			}
+			className.set(fullDocName.split("\\.")[0]);
+			for (int i = 0; i < row.size(); i++) {
+				partial.set(row.termAt(i), row.scoreAt(i), 1);
+				context.write(className, partial);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			context.getCounter(AverageCounter.MAP_MILLIS).increment(millisSince(mapStart));
+		}
+	}
+
+	// Term ids and scores of one document row of the sparse matrix
+	public static class SparseRowWritable implements Writable {
+		private int size;
+		private int[] termIds = new int[64];
+		private float[] scores = new float[64];
+
+		public int size() {
+			return size;
+		}
+
+		public int termAt(int i) {
+			return termIds[i];
+		}
+
+		public float scoreAt(int i) {
+			return scores[i];
+		}
+
+		// Room for size entries, filled in place by the reader
+		private void resize(int size) {
+			if (termIds.length < size) {
+				termIds = new int[Math.max(size, termIds.length * 2)];
+				scores = new float[termIds.length];
+			}
+			this.size = size;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			WritableUtils.writeVInt(out, size);
+			for (int i = 0; i < size; i++) {
+				WritableUtils.writeVInt(out, termIds[i]);
+				out.writeFloat(scores[i]);
+			}
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			resize(WritableUtils.readVInt(in));
+			for (int i = 0; i < size; i++) {
+				termIds[i] = WritableUtils.readVInt(in);
+				scores[i] = in.readFloat();
+			}
+		}
+	}
+
+	// Binary sparse matrix (.smx) written from task_1_4.mtx with -D matrix_format=binary.
+	//   file:    magic "SMX1", score encoding (0 = float, 1 = 16-bit quantized), 16-byte sync marker, blocks
+	//   block:   sync marker, entry count, compressed length, raw length, deflated payload
+	//   payload: [quantization step as float], then per document row sorted by document id:
+	//            varint doc id delta, varint entry count, varint term id deltas, then the scores
+	// Every block is compressed on its own and starts with the sync marker, so a split starts at the first
+	// marker after its offset, like a SequenceFile.
+	public static class SparseMatrixWriter implements java.io.Closeable {
+		public static final int MAGIC = 0x534D5831; // "SMX1"
+		public static final int SYNC_SIZE = 16;
+		private final DataOutputStream out;
+		private final boolean quantized;
+		private final byte[] sync = new byte[SYNC_SIZE];
+		private final int blockEntries;
+		private int size;
+		private int[] docIds;
+		private int[] termIds;
+		private float[] scores;
+		private final java.io.ByteArrayOutputStream raw = new java.io.ByteArrayOutputStream();
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private byte[] compressed = new byte[1 << 16];
+
+		public SparseMatrixWriter(java.io.OutputStream stream, boolean quantized, int blockEntries) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(stream));
+			this.quantized = quantized;
+			this.blockEntries = blockEntries;
+			docIds = new int[blockEntries];
+			termIds = new int[blockEntries];
+			scores = new float[blockEntries];
+			new Random().nextBytes(sync);
+			out.writeInt(MAGIC);
+			out.writeByte(quantized ? 1 : 0);
+			out.write(sync);
+		}
+
+		public void add(int termId, int docId, float score) throws IOException {
+			if (quantized && !(score >= 0)) {
+				throw new IOException("Quantized scores must be non-negative: " + score);
+			}
+			docIds[size] = docId;
+			termIds[size] = termId;
+			scores[size++] = score;
+			if (size == blockEntries) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (size == 0) {
+				return;
+			}
+			// Rows by document, terms ascending inside a row, so the ids become small deltas
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> docIds[a] != docIds[b]
+					? Integer.compare(docIds[a], docIds[b]) : Integer.compare(termIds[a], termIds[b]));
+
+			raw.reset();
+			DataOutputStream payload = new DataOutputStream(raw);
+			float step = 0;
+			if (quantized) {
+				float max = 0;
+				for (int i = 0; i < size; i++) {
+					max = Math.max(max, scores[i]);
+				}
+				step = max > 0 ? max / 65535 : 1;
+				payload.writeFloat(step);
+			}
+			int previousDoc = 0;
+			for (int from = 0; from < size; ) {
+				int doc = docIds[order[from]];
+				int to = from;
+				while (to < size && docIds[order[to]] == doc) {
+					to++;
+				}
+				writeVarint(payload, doc - previousDoc);
+				writeVarint(payload, to - from);
+				int previousTerm = 0;
+				for (int i = from; i < to; i++) {
+					writeVarint(payload, termIds[order[i]] - previousTerm);
+					previousTerm = termIds[order[i]];
+				}
+				for (int i = from; i < to; i++) {
+					if (quantized) {
+						payload.writeShort(Math.round(scores[order[i]] / step));
+					} else {
+						payload.writeFloat(scores[order[i]]);
+					}
+				}
+				previousDoc = doc;
+				from = to;
+			}
+
+			byte[] bytes = raw.toByteArray();
+			deflater.reset();
+			deflater.setInput(bytes);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = Arrays.copyOf(compressed, length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			out.write(sync);
+			out.writeInt(size);
+			out.writeInt(length);
+			out.writeInt(bytes.length);
+			out.write(compressed, 0, length);
+			size = 0;
+		}
+
+		private static void writeVarint(DataOutputStream out, int value) throws IOException {
+			while ((value & ~0x7F) != 0) {
+				out.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			deflater.end();
+			out.close();
+		}
+	}
+
+	public static class SparseMatrixInputFormat extends FileInputFormat<IntWritable, SparseRowWritable> {
+		@Override
+		public RecordReader<IntWritable, SparseRowWritable> createRecordReader(InputSplit split,
+				TaskAttemptContext context) {
+			return new SparseMatrixRecordReader();
+		}
+	}
+
+	// Reads the blocks whose sync marker starts inside the split and returns one document row at a time,
+	// decoded in place from the inflated block
+	public static class SparseMatrixRecordReader extends RecordReader<IntWritable, SparseRowWritable> {
+		private FSDataInputStream in;
+		private long start;
+		private long end;
+		private boolean quantized;
+		private final byte[] sync = new byte[SparseMatrixWriter.SYNC_SIZE];
+		private final byte[] marker = new byte[SparseMatrixWriter.SYNC_SIZE];
+		private final Inflater inflater = new Inflater();
+		private byte[] compressed = new byte[1 << 16];
+		private byte[] block = new byte[1 << 16];
+		private int blockLength;
+		private int blockPos;
+		private float step;
+		private int doc;
+		private final IntWritable key = new IntWritable();
+		private final SparseRowWritable value = new SparseRowWritable();
+
+		@Override
+		public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+			FileSplit split = (FileSplit) genericSplit;
+			Path path = split.getPath();
+			in = path.getFileSystem(context.getConfiguration()).open(path);
+			start = split.getStart();
+			end = start + split.getLength();
+
+			if (in.readInt() != SparseMatrixWriter.MAGIC) {
+				throw new IOException("Not a sparse matrix file: " + path);
+			}
+			quantized = in.readByte() == 1;
+			in.readFully(sync);
+			long headerEnd = in.getPos();
+			if (start > headerEnd) {
+				in.seek(start);
+			}
+			start = Math.max(start, headerEnd);
+			// Park on the first sync marker of the split; a block belongs to the split holding its marker
+			if (!seekToSync()) {
+				in.seek(end);
+			}
+		}
+
+		// Leaves the stream at the start of the next sync marker, false at the end of the file
+		private boolean seekToSync() throws IOException {
+			long pos = in.getPos();
+			int filled = 0;
+			while (true) {
+				int b = in.read();
+				if (b < 0) {
+					return false;
+				}
+				if (filled < marker.length) {
+					marker[filled++] = (byte) b;
+				} else {
+					System.arraycopy(marker, 1, marker, 0, marker.length - 1);
+					marker[marker.length - 1] = (byte) b;
+					pos++;
+				}
+				if (filled == marker.length && Arrays.equals(marker, sync)) {
+					in.seek(pos);
+					return true;
+				}
+			}
+		}
+
+		private boolean nextBlock() throws IOException {
+			if (in.getPos() >= end) {
+				return false;
+			}
+			try {
+				in.readFully(marker);
+			} catch (java.io.EOFException e) {
+				return false;
+			}
+			if (!Arrays.equals(marker, sync)) {
+				throw new IOException("Corrupt sparse matrix block at " + (in.getPos() - marker.length));
+			}
+			in.readInt(); // entry count
+			int compressedLength = in.readInt();
+			blockLength = in.readInt();
+			if (compressed.length < compressedLength) {
+				compressed = new byte[compressedLength];
+			}
+			if (block.length < blockLength) {
+				block = new byte[blockLength];
+			}
+			in.readFully(compressed, 0, compressedLength);
+			inflater.reset();
+			inflater.setInput(compressed, 0, compressedLength);
+			try {
+				int inflated = 0;
+				while (inflated < blockLength && !inflater.finished()) {
+					inflated += inflater.inflate(block, inflated, blockLength - inflated);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			}
+			blockPos = 0;
+			doc = 0;
+			if (quantized) {
+				step = Float.intBitsToFloat(readInt());
+			}
+			return true;
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException {
+			if (blockPos >= blockLength && !nextBlock()) {
+				return false;
+			}
+			doc += readVarint();
+			key.set(doc);
+			int count = readVarint();
+			value.resize(count);
+			int term = 0;
+			for (int i = 0; i < count; i++) {
+				term += readVarint();
+				value.termIds[i] = term;
+			}
+			for (int i = 0; i < count; i++) {
+				if (quantized) {
+					int q = ((block[blockPos] & 0xFF) << 8) | (block[blockPos + 1] & 0xFF);
+					blockPos += 2;
+					value.scores[i] = q * step;
+				} else {
+					value.scores[i] = Float.intBitsToFloat(readInt());
+				}
+			}
+			return true;
+		}
+
+		private int readVarint() {
+			int result = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = block[blockPos++];
+				result |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return result;
+				}
+			}
+		}
+
+		private int readInt() {
+			int result = ((block[blockPos] & 0xFF) << 24) | ((block[blockPos + 1] & 0xFF) << 16)
+					| ((block[blockPos + 2] & 0xFF) << 8) | (block[blockPos + 3] & 0xFF);
+			blockPos += 4;
+			return result;
+		}
+
+		@Override
+		public IntWritable getCurrentKey() {
+			return key;
+		}
+
+		@Override
+		public SparseRowWritable getCurrentValue() {
+			return value;
+		}
+
+		@Override
+		public float getProgress() throws IOException {
+			return end == start ? 1 : Math.min(1, (in.getPos() - start) / (float) (end - start));
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	// Converts "termId<TAB>docId<TAB>tfidf" lines to the binary sparse matrix
+	private static void convertMatrix(FileSystem fs, Path textPath, Path binaryPath, boolean quantized,
+			int blockEntries) throws IOException {
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(textPath), StandardCharsets.UTF_8));
+			 SparseMatrixWriter writer = new SparseMatrixWriter(fs.create(binaryPath, true), quantized, blockEntries)) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] parts = line.split("\\t");
+				if (parts.length < 3) {
+					continue;
+				}
+				writer.add(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+						Float.parseFloat(parts[2].trim()));
+			}
+		}
+	}
+
+	// True if the .smx at path has the requested score encoding and block size. The block size is the entry
+	// count of the first block, which is smaller only when that block is the whole file.
+	private static boolean matrixMatches(FileSystem fs, Path path, boolean quantized, int blockEntries)
+			throws IOException {
+		long length = fs.getFileStatus(path).getLen();
+		try (FSDataInputStream in = fs.open(path)) {
+			if (in.readInt() != SparseMatrixWriter.MAGIC || in.readByte() != (quantized ? 1 : 0)) {
+				return false;
+			}
+			long firstBlock = Integer.BYTES + 1 + SparseMatrixWriter.SYNC_SIZE;
+			if (length == firstBlock) {
+				// No entries at all
+				return true;
+			}
+			in.seek(firstBlock + SparseMatrixWriter.SYNC_SIZE);
+			int entries = in.readInt();
+			int compressedLength = in.readInt();
+			long end = firstBlock + SparseMatrixWriter.SYNC_SIZE + 3 * Integer.BYTES + compressedLength;
+			return entries == blockEntries || (entries < blockEntries && end == length);
+		}
+	}
+
+	// Partial aggregate of one term's TF-IDF scores inside a class
+	public static class TermPartialWritable implements Writable {
+		private int termId;
+		private double sum;
+		private long count;
+
+		public TermPartialWritable() {
+		}
+
+		public TermPartialWritable(int termId, double sum, long count) {
+			set(termId, sum, count);
+		}
+
+		public void set(int termId, double sum, long count) {
+			this.termId = termId;
+			this.sum = sum;
+			this.count = count;
+		}
+
+		public int getTermId() {
+			return termId;
+		}
+
+		public double getSum() {
+			return sum;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			WritableUtils.writeVInt(out, termId);
+			out.writeDouble(sum);
+			WritableUtils.writeVLong(out, count);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			termId = WritableUtils.readVInt(in);
+			sum = in.readDouble();
+			count = WritableUtils.readVLong(in);
+		}
+
+		@Override
+		public String toString() {
+			return termId + " " + sum + " " + count;
+		}
+	}
+
+	// Map-side merge: one partial per (class, term) leaves each spill
+	public static class AverageCombiner extends Reducer<Text, TermPartialWritable, Text, TermPartialWritable> {
+		private final TermPartialWritable partial = new TermPartialWritable();
+		private final TermAccumulator accumulator = new TermAccumulator();
+
+		@Override
+		protected void reduce(Text className, Iterable<TermPartialWritable> values, Context context)
+				throws IOException, InterruptedException {
+			accumulator.clear();
+			for (TermPartialWritable value : values) {
+				accumulator.add(value.getTermId(), value.getSum(), value.getCount());
+			}
+
+			for (int i = 0; i < accumulator.size(); i++) {
+				int termId = accumulator.termAt(i);
+				partial.set(termId, accumulator.sum(termId), accumulator.count(termId));
+				context.write(className, partial);
+			}
+		}
+	}
+
+	// Per-class (sum, count) totals in arrays indexed by term id, reused across keys
+	public static class TermAccumulator {
+		private double[] sums = new double[1024];
+		private long[] counts = new long[1024];
+		// Term ids touched since the last clear, in first-seen order
+		private int[] terms = new int[1024];
+		private int size;
+
+		public void add(int termId, double sum, long count) {
+			if (termId >= sums.length) {
+				int capacity = Math.max(termId + 1, sums.length * 2);
+				sums = Arrays.copyOf(sums, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+			}
+			if (counts[termId] == 0) {
+				if (size == terms.length) {
+					terms = Arrays.copyOf(terms, size * 2);
+				}
+				terms[size++] = termId;
+			}
+			sums[termId] += sum;
+			counts[termId] += count;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int termAt(int index) {
+			return terms[index];
+		}
+
+		public double sum(int termId) {
+			return sums[termId];
+		}
+
+		public long count(int termId) {
+			return counts[termId];
+		}
+
+		// Only the touched slots are reset, so clearing costs O(terms in the class)
+		public void clear() {
+			for (int i = 0; i < size; i++) {
+				sums[terms[i]] = 0;
+				counts[terms[i]] = 0;
+			}
+			size = 0;
+		}
+	}
+
+	// Bounded min-heap keeping the N best (score, termId) pairs.
+	// Higher score ranks first; equal scores rank the lower term id first.
+	public static class TopTerms {
+		private final double[] scores;
+		private final int[] termIds;
+		private int size;
+
+		public TopTerms(int capacity) {
+			scores = new double[capacity];
+			termIds = new int[capacity];
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void offer(int termId, double score) {
+			if (scores.length == 0) {
+				return;
+			}
+			if (size < scores.length) {
+				scores[size] = score;
+				termIds[size] = termId;
+				siftUp(size++);
+			} else if (worse(0, score, termId)) {
+				// Root is the weakest kept entry, replace it and restore the heap
+				scores[0] = score;
+				termIds[0] = termId;
+				siftDown(0);
+			}
+		}
+
+		// Drain the heap best-first; the heap is empty afterwards
+		public int drain(int[] outTermIds, double[] outScores) {
+			int n = size;
+			for (int i = n - 1; i >= 0; i--) {
+				outTermIds[i] = termIds[0];
+				outScores[i] = scores[0];
+				size--;
+				scores[0] = scores[size];
+				termIds[0] = termIds[size];
+				siftDown(0);
+			}
+			return n;
+		}
+
+		// True if the heap entry at i ranks below (score, termId)
+		private boolean worse(int i, double score, int termId) {
+			int cmp = Double.compare(scores[i], score);
+			return cmp < 0 || (cmp == 0 && termIds[i] > termId);
+		}
+
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!worse(i, scores[parent], termIds[parent])) {
+					break;
+				}
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int left = 2 * i + 1;
+				if (left >= size) {
+					break;
+				}
+				int weakest = left;
+				int right = left + 1;
+				if (right < size && worse(right, scores[left], termIds[left])) {
+					weakest = right;
+				}
+				if (!worse(weakest, scores[i], termIds[i])) {
+					break;
+				}
+				swap(i, weakest);
+				i = weakest;
+			}
+		}
+
+		private void swap(int a, int b) {
+			double score = scores[a];
+			scores[a] = scores[b];
+			scores[b] = score;
+			int termId = termIds[a];
+			termIds[a] = termIds[b];
+			termIds[b] = termId;
+		}
+	}
+
+	// Count-Min sketch of the scores of a class: depth rows of width cells, each cell holding the summed
+	// score and the count of the partials hashed to it, so a term adds to one cell per row. For
+	// width = ceil(e / epsilon) and depth = ceil(ln(1 / delta)) the cell of a term with the smallest count
+	// holds at most epsilon times the class count of other terms' partials, with probability 1 - delta.
+	// Its average is the term's average mixed with that share of foreign scores, so the estimate is off
+	// by at most (foreign count / cell count) times the score range. Memory depends on epsilon and delta
+	// only, not on the number of terms: 16 bytes per cell, where the exact engine needs 16 per term.
+	public static class TermSketch {
+		private final int width;
+		private final int depth;
+		private final long[] seeds;
+		private final double[] sums;
+		private final long[] counts;
+
+		public TermSketch(double epsilon, double delta) {
+			width = (int) Math.ceil(Math.E / epsilon);
+			depth = (int) Math.ceil(Math.log(1 / delta));
+			seeds = new long[depth];
+			Random random = new Random(depth * 31L + width);
+			for (int row = 0; row < depth; row++) {
+				seeds[row] = random.nextLong();
+			}
+			sums = new double[width * depth];
+			counts = new long[width * depth];
+		}
+
+		public void add(int termId, double sum, long count) {
+			for (int row = 0; row < depth; row++) {
+				int cell = cell(row, termId);
+				sums[cell] += sum;
+				counts[cell] += count;
+			}
+		}
+
+		// Sum and count come from the same cell, the one with the fewest partials of other terms
+		public double average(int termId) {
+			int best = cell(0, termId);
+			for (int row = 1; row < depth; row++) {
+				int cell = cell(row, termId);
+				if (counts[cell] < counts[best]) {
+					best = cell;
+				}
+			}
+			return sums[best] / counts[best];
+		}
+
+		public void clear() {
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+		}
+
+		// One independent hash per row (splitmix64 finalizer over the row seed)
+		private int cell(int row, int termId) {
+			long h = termId * 0x9E3779B97F4A7C15L + seeds[row];
+			h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+			h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+			h ^= h >>> 31;
+			return row * width + (int) ((h & Long.MAX_VALUE) % width);
+		}
+	}
+
+	// The terms with the best estimated averages seen so far, one slot per term. A term already in a slot
+	// gets its new estimate, a new one replaces the weakest slot when it ranks above it. Estimates of the
+	// other slots go stale as the sketch fills, so the weakest slot is estimated again before it is given up.
+	public static class CandidateTerms {
+		private final TermSketch sketch;
+		private final int[] termIds;
+		private final double[] scores;
+		private final Map<Integer, Integer> slots = new HashMap<>();
+		private int size;
+		private int weakest;
+
+		public CandidateTerms(TermSketch sketch, int capacity) {
+			this.sketch = sketch;
+			termIds = new int[capacity];
+			scores = new double[capacity];
+		}
+
+		public void clear() {
+			slots.clear();
+			size = 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int termAt(int index) {
+			return termIds[index];
+		}
+
+		public void offer(int termId, double score) {
+			Integer slot = slots.get(termId);
+			if (slot != null) {
+				scores[slot] = score;
+				if (slot == weakest || score < scores[weakest]) {
+					findWeakest();
+				}
+			} else if (size < termIds.length) {
+				slots.put(termId, size);
+				termIds[size] = termId;
+				scores[size++] = score;
+				findWeakest();
+			} else if (termIds.length > 0 && score > rescoreWeakest()) {
+				slots.remove(termIds[weakest]);
+				slots.put(termId, weakest);
+				termIds[weakest] = termId;
+				scores[weakest] = score;
+				findWeakest();
+			}
+		}
+
+		// Score of the weakest slot on the current sketch, after moving slots that are no longer the weakest
+		private double rescoreWeakest() {
+			while (true) {
+				double score = sketch.average(termIds[weakest]);
+				if (score == scores[weakest]) {
+					return score;
+				}
+				scores[weakest] = score;
+				findWeakest();
+			}
+		}
+
+		private void findWeakest() {
+			weakest = 0;
+			for (int i = 1; i < size; i++) {
+				if (scores[i] < scores[weakest]) {
+					weakest = i;
 				}
 			}
-			
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(termIdMapPath)))) {
+		}
+	}
+
+	// Dense id -> name lookup table, ids index straight into the array. Immutable once built, so one
+	// instance is shared by every mapper thread of a JVM.
+	public static final class IdDictionary {
+		private static final int MAGIC = 0x49444D31; // "IDM1"
+		private final String[] names;
+
+		private IdDictionary(String[] names) {
+			this.names = names;
+		}
+
+		public String get(int id) {
+			if (id < 0 || id >= names.length) {
+				return null;
+			}
+			return names[id];
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+		public static IdDictionary fromMap(Map<String, Integer> nameToId) {
+			int maxId = 0;
+			for (int id : nameToId.values()) {
+				maxId = Math.max(maxId, id);
+			}
+			String[] names = new String[maxId + 1];
+			for (Map.Entry<String, Integer> entry : nameToId.entrySet()) {
+				names[entry.getValue()] = entry.getKey();
+			}
+			return new IdDictionary(names);
+		}
+
+		// Parse the "name,id" text format written by saveDocIdMapToHDFS/saveTermIdMapToHDFS
+		public static IdDictionary readText(FileSystem fs, Path path) throws IOException {
+			Map<String, Integer> nameToId = new HashMap<>();
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
 				String line;
 				while ((line = br.readLine()) != null) {
-					String[] parts = line.split(",");
-					if (parts.length == 2) {
-						String key = parts[0];
-						int value = Integer.parseInt(parts[1]);
-						termIdMap.put(key, value);
+					int comma = line.lastIndexOf(',');
+					if (comma > 0) {
+						nameToId.put(line.substring(0, comma), Integer.parseInt(line.substring(comma + 1).trim()));
 					}
 				}
 			}
+			return fromMap(nameToId);
 		}
 
-        @Override
-        protected void map(LongWritable key, Text value, Context context)
-                throws IOException, InterruptedException {
-            String[] parts = value.toString().split("\\t");
-			String docId = parts[1];
-			Text tfidf = new Text();
-			tfidf.set(parts[2]);
-			String fullDocName = getFullDocName(Integer.parseInt(docId), docIdMap);
-			String termId = parts[0].trim();
-			String termName = getTermName(Integer.parseInt(termId), termIdMap);
-			Text className = new Text (fullDocName.split("\\.")[0]);
-
-            context.write(new Text(className), new Text(termName + " " + tfidf));
-        }
-    }
+		// Binary layout: magic, slot count, then per slot a byte length (-1 if unused) and UTF-8 bytes
+		public void writeBinary(FileSystem fs, Path path) throws IOException {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(path, true)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(names.length);
+				for (String name : names) {
+					if (name == null) {
+						out.writeInt(-1);
+					} else {
+						byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+						out.writeInt(bytes.length);
+						out.write(bytes);
+					}
+				}
+			}
+		}
+
+		public static IdDictionary readBinary(FileSystem fs, Path path) throws IOException {
+			ByteBuffer buffer;
+			if (fs instanceof LocalFileSystem) {
+				// Local files (local runner, localized cache files) are memory-mapped
+				return readMapped(((LocalFileSystem) fs).pathToFile(path));
+			} else {
+				byte[] bytes = new byte[(int) fs.getFileStatus(path).getLen()];
+				try (FSDataInputStream in = fs.open(path)) {
+					in.readFully(0, bytes);
+				}
+				buffer = ByteBuffer.wrap(bytes);
+			}
+			return decode(buffer, path);
+		}
+
+		private static IdDictionary readMapped(File file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), new Path(file.toURI()));
+			}
+		}
+
+		private static IdDictionary decode(ByteBuffer buffer, Path path) throws IOException {
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+				throw new IOException("Not an id dictionary file: " + path);
+			}
+			String[] names = new String[buffer.getInt()];
+			byte[] scratch = new byte[64];
+			for (int i = 0; i < names.length; i++) {
+				int len = buffer.getInt();
+				if (len < 0) {
+					continue;
+				}
+				if (len > scratch.length) {
+					scratch = new byte[Math.max(len, scratch.length * 2)];
+				}
+				buffer.get(scratch, 0, len);
+				names[i] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+			}
+			return new IdDictionary(names);
+		}
+
+		// Load <dir>/<baseName>.bin if main wrote one, otherwise <dir>/<baseName>.txt
+		public static IdDictionary load(FileSystem fs, String dir, String baseName) throws IOException {
+			Path binPath = new Path(dir + "/" + baseName + ".bin");
+			if (fs.exists(binPath)) {
+				return readBinary(fs, binPath);
+			}
+			return readText(fs, new Path(dir + "/" + baseName + ".txt"));
+		}
+
+		// Ships <input>/<baseName>.bin through the distributed cache, localized once per node
+		public static void addToCache(Job job, String dir, String baseName) throws IOException {
+			try {
+				job.addCacheFile(new URI(new Path(dir + "/" + baseName + ".bin").toUri() + "#" + baseName + ".bin"));
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+
+		// Last dictionary decoded per base name in this JVM, tasks and mapper threads sharing a JVM reuse it.
+		// Only touched under the class lock.
+		private static final Map<String, IdDictionary> shared = new HashMap<>();
+		private static final Map<String, String> sharedVersion = new HashMap<>();
+
+		// Loaded lazily by the first caller, the others wait and get the same instance. Maps the localized
+		// cache file (a symlink in the task directory) when there is one, otherwise loads from the input
+		// directory. The file path, size and time tell a new job's file from the cached one.
+		public static synchronized IdDictionary loadShared(Configuration conf, String baseName) throws IOException {
+			File localized = new File(baseName + ".bin");
+			if (!localized.isFile()) {
+				return load(FileSystem.get(conf), conf.get("input"), baseName);
+			}
+			String version = localized.getCanonicalPath() + "@" + localized.length() + "@" + localized.lastModified();
+			if (!version.equals(sharedVersion.get(baseName))) {
+				shared.put(baseName, readMapped(localized));
+				sharedVersion.put(baseName, version);
+			}
+			return shared.get(baseName);
+		}
+	}
+
+	// Spreads the classes over the reduce tasks of the job (-D reducers=N, else -D mapreduce.job.reduces=N;
+	// the driver sets the resolved count on the job). Classes are placed largest first (by document count
+	// in docIdMap), each on the reducer with the fewest documents so far; every task derives the same
+	// placement from the shared dictionary. Classes missing from it are hashed.
+	public static class ClassPartitioner extends Partitioner<Text, TermPartialWritable> implements Configurable {
+		private Configuration conf;
+		private final Map<String, Integer> placement = new HashMap<>();
+		private int reducers;
+		// Map output comes in runs of the same class, the last lookup is reused
+		private final Text lastClass = new Text();
+		private int lastPartition = -1;
 
-	public static class AverageReducer extends Reducer<Text, Text, NullWritable, Text> {
+		@Override
+		public void setConf(Configuration conf) {
+			this.conf = conf;
+			reducers = conf.getInt("mapreduce.job.reduces", 1);
+			Map<String, Integer> docsPerClass = new HashMap<>();
+			try {
+				IdDictionary docNames = IdDictionary.loadShared(conf, "docIdMap");
+				for (int id = 0; id < docNames.size(); id++) {
+					String name = docNames.get(id);
+					if (name != null) {
+						docsPerClass.merge(name.split("\\.")[0], 1, Integer::sum);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			List<String> classes = new ArrayList<>(docsPerClass.keySet());
+			classes.sort((a, b) -> docsPerClass.get(a).equals(docsPerClass.get(b))
+					? a.compareTo(b) : docsPerClass.get(b) - docsPerClass.get(a));
+			long[] load = new long[reducers];
+			for (String className : classes) {
+				int least = 0;
+				for (int r = 1; r < reducers; r++) {
+					if (load[r] < load[least]) {
+						least = r;
+					}
+				}
+				placement.put(className, least);
+				load[least] += docsPerClass.get(className);
+			}
+		}
+
+		@Override
+		public Configuration getConf() {
+			return conf;
+		}
+
+		@Override
+		public int getPartition(Text className, TermPartialWritable value, int numPartitions) {
+			if (lastPartition < 0 || !className.equals(lastClass)) {
+				Integer placed = placement.get(className.toString());
+				lastPartition = placed != null ? placed : (className.hashCode() & Integer.MAX_VALUE) % reducers;
+				lastClass.set(className);
+			}
+			return lastPartition % numPartitions;
+		}
+	}
+
+	public static class AverageReducer extends Reducer<Text, TermPartialWritable, NullWritable, Text> {
+		public static final int DEFAULT_TOP_N = 5;
 		// For choosing |C_i| = sum of documents in class i
 		//Map<String, Integer> categoryDocCount;
-		private BufferedWriter bw;
+		private IdDictionary termNames;
+		private final TermAccumulator accumulator = new TermAccumulator();
+		private TopTerms topTerms;
+		private int[] topTermIds;
+		private double[] topScores;
+		private long reduceStart;
+		// Classes with their own TERMS_PER_CLASS counter, picked by the driver
+		private Set<String> countedClasses;
+		// Set with -D state_dir: every merged (class, term) partial is written out for later delta runs, as
+		// the (Text, TermPartialWritable) records of the named output, not the job's (NullWritable, Text)
+		private MultipleOutputs<?, ?> outputs;
+		private final TermPartialWritable statePartial = new TermPartialWritable();
+		// Set with -D top_engine=sketch
+		private TermSketch sketch;
+		private CandidateTerms candidates;
 		@Override
 		protected void setup(Context context) throws IOException, InterruptedException {
+			long start = System.nanoTime();
 			Configuration conf = context.getConfiguration();
-			FileSystem fs = FileSystem.get(conf);
-			Path outputPath = new Path (conf.get("output_avg") + "/task_1_5.txt");
-			bw = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath)));
+			termNames = IdDictionary.loadShared(conf, "termIdMap");
+			countedClasses = new HashSet<>(conf.getTrimmedStringCollection("term_counter_classes"));
+			if (conf.get("state_dir") != null) {
+				outputs = new MultipleOutputs<>(context);
+			}
+			int topN = conf.getInt("top_n", DEFAULT_TOP_N);
+			topTerms = new TopTerms(topN);
+			topTermIds = new int[topN];
+			topScores = new double[topN];
+			if ("sketch".equals(conf.get("top_engine", "exact"))) {
+				// The default 3 rows of 2719 cells (130 KB) stay under the exact arrays for the BBC vocabulary
+				// (9635 terms, 154 KB); lower sketch_epsilon trades that memory back for accuracy
+				sketch = new TermSketch(conf.getDouble("sketch_epsilon", 0.001), conf.getDouble("sketch_delta", 0.05));
+				candidates = new CandidateTerms(sketch, conf.getInt("sketch_candidates", 16 * topN));
+			}
+			// task_1_5.txt is merged by the driver from the part-r-* files of all reducers
+			context.getCounter(AverageCounter.SETUP_MILLIS).increment(millisSince(start));
+			reduceStart = System.nanoTime();
 		    // For choosing |C_i| = sum of documents in class i
 		   /* Path categoryDocCountPath = new Path(conf.get("input") + "/" + "categoryDocCount.txt");
 		    categoryDocCount = new HashMap<>();
 
-		    try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(categoryDocCountPath)))) {
+		    try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(categoryDocCountPath), StandardCharsets.UTF_8))) {
 				String line;
 				while ((line = br.readLine()) != null) {
 					String[] parts = line.split(",");
@@ -104,34 +1165,31 @@ public class HighestAverage {
 			}*/
 	    }
 
-		private static final int TOP_N = 5;
-
 	   	@Override
-		protected void reduce(Text className, Iterable<Text> termIdTfidfValues, Context context)
+		protected void reduce(Text className, Iterable<TermPartialWritable> termPartials, Context context)
 	        throws IOException, InterruptedException {
-	    // Map to store the sum of TF-IDF scores and count of terms
-	    Map<String, Double> termSum = new HashMap<>();
-	    Map<String, Integer> termCount = new HashMap<>();
-	    TreeMap<Double, String> termAvgMap = new TreeMap<>(Collections.reverseOrder());
-
-	    // Iterate through all the TF-IDF values for the term
-	    for (Text termIdTfidfValue : termIdTfidfValues) {
-	        String[] parts = termIdTfidfValue.toString().split(" ");
-	        if (parts.length == 2) {
-	            String termId = parts[0];
-	            double tfidf = Double.parseDouble(parts[1]);
-
-	            // Update sum and count for the term
-	            termSum.put(termId, termSum.getOrDefault(termId, 0.0) + tfidf);
-	            termCount.put(termId, termCount.getOrDefault(termId, 0) + 1);
-	        }
+	    if (sketch != null) {
+	        rankSketched(termPartials);
+	        writeTopTerms(className, context);
+	        return;
+	    }
+	    // Sum and count of TF-IDF scores per term id
+	    accumulator.clear();
+
+	    // Merge the (sum, count) partials coming from the mappers and combiners
+	    for (TermPartialWritable termPartial : termPartials) {
+	        accumulator.add(termPartial.getTermId(), termPartial.getSum(), termPartial.getCount());
 	    }
 
 	    // Compute the average TF-IDF score for each term
-	    for (Map.Entry<String, Double> entry : termSum.entrySet()) {
-	        String termId = entry.getKey();
-	        double sum = entry.getValue();
-	        int count = termCount.getOrDefault(termId, 0);
+	    for (int i = 0; i < accumulator.size(); i++) {
+	        int termId = accumulator.termAt(i);
+	        double sum = accumulator.sum(termId);
+	        long count = accumulator.count(termId);
+	        if (outputs != null) {
+	            statePartial.set(termId, sum, count);
+	            outputs.write(STATE_OUTPUT, className, statePartial);
+	        }
 		/*
 		// For choosing |C_i| = sum of documents in class i
 		for (Map.Entry<String, Integer> entry_2 : categoryDocCount.entrySet()) {
@@ -141,46 +1199,313 @@ public class HighestAverage {
 		}
 		*/
 	        double avg = sum / count;
-	        // Store the average TF-IDF score in the TreeMap
-	        termAvgMap.put(avg, termId);
+	        // Only the best topN averages are kept
+	        topTerms.offer(termId, avg);
 	    }
+	    String counterName = countedClasses.contains(className.toString()) ? className.toString() : OTHER_CLASSES;
+	    context.getCounter(TERMS_PER_CLASS, counterName).increment(accumulator.size());
+	    writeTopTerms(className, context);
+		}
+
+		// -D top_engine=sketch: fixed memory per class whatever its number of terms. Every partial goes into
+		// the sketch and the new estimated average of its term competes for a candidate slot; all candidates
+		// are estimated again on the complete sketch once the whole class is in.
+		private void rankSketched(Iterable<TermPartialWritable> termPartials) {
+		    sketch.clear();
+		    candidates.clear();
+		    for (TermPartialWritable termPartial : termPartials) {
+		        int termId = termPartial.getTermId();
+		        sketch.add(termId, termPartial.getSum(), termPartial.getCount());
+		        candidates.offer(termId, sketch.average(termId));
+		    }
+		    for (int i = 0; i < candidates.size(); i++) {
+		        int termId = candidates.termAt(i);
+		        topTerms.offer(termId, sketch.average(termId));
+		    }
+		}
 
-	    // Output the top 5 terms with the highest average TF-IDF scores
+		private void writeTopTerms(Text className, Context context) throws IOException, InterruptedException {
+	    // Output the top N terms with the highest average TF-IDF scores
 	    StringBuilder topTerms = new StringBuilder();
-	    int count = 0;
+	    int count = this.topTerms.drain(topTermIds, topScores);
 	    topTerms.append(className.toString() + ": ");
 		
-	    for (Map.Entry<Double, String> entry : termAvgMap.entrySet()) {
-	        if (count >= TOP_N) {
-	            break;
+	    for (int i = 0; i < count; i++) {
+	        String termName = getTermName(topTermIds[i], termNames);
+	        if (termName == null) {
+	            // Unknown ids are written as the id itself
+	            context.getCounter(AverageCounter.DICTIONARY_MISSES).increment(1);
+	            termName = String.valueOf(topTermIds[i]);
 	        }
-	        topTerms.append(entry.getValue()).append(":").append(String.format("%.2f", entry.getKey())).append(",");
-	        count++;
+	        topTerms.append(termName).append(":").append(String.format("%.2f", topScores[i])).append(",");
 	    }
 		
 	    if (topTerms.length() > 0 && topTerms.charAt(topTerms.length() - 1) == ',') {
     		topTerms.deleteCharAt(topTerms.length() - 1);
 	    }	
 
-	    // Write the top 5 terms for the class to the output
+	    // Write the top N terms for the class to the output
 	    context.write(NullWritable.get(), new Text(topTerms.toString()));
-	    bw.write(topTerms.toString() + ": ");
 		}
 	     @Override
              protected void cleanup(Context context) throws IOException, InterruptedException {
-            	bw.close(); // Close the buffered writer to release resources
+            	if (outputs != null) {
+            		outputs.close();
+            	}
+            	context.getCounter(AverageCounter.REDUCE_MILLIS).increment(millisSince(reduceStart));
              }
     }
 
+	// -D pipeline=tfidf computes the TF-IDF scores itself from the raw term counts of <input>/bbc.mtx
+	// (Matrix Market "termId docId count" entries) instead of reading task_1_4.mtx:
+	//   tf = count / document length, idf = log10(documents / documents containing the term)
+	// Job 1 groups the entries by term for the document frequency, job 2 groups them by document for its
+	// length and, with DocClassMapper chained behind the reducer, turns each score into the per-class
+	// partial AverageMapper would emit. Both hand over SequenceFiles, the matrix never goes through text.
+
+	// Matrix entry seen from the term side
+	public static class DocCountWritable implements Writable {
+		private int docId;
+		private double count;
+
+		public void set(int docId, double count) {
+			this.docId = docId;
+			this.count = count;
+		}
+
+		public int getDocId() {
+			return docId;
+		}
+
+		public double getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			WritableUtils.writeVInt(out, docId);
+			out.writeDouble(count);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			docId = WritableUtils.readVInt(in);
+			count = in.readDouble();
+		}
+	}
+
+	// Matrix entry seen from the document side, with the idf of its term
+	public static class TermCountWritable implements Writable {
+		private int termId;
+		private double count;
+		private double idf;
+
+		public void set(int termId, double count, double idf) {
+			this.termId = termId;
+			this.count = count;
+			this.idf = idf;
+		}
+
+		public int getTermId() {
+			return termId;
+		}
+
+		public double getCount() {
+			return count;
+		}
+
+		public double getIdf() {
+			return idf;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			WritableUtils.writeVInt(out, termId);
+			out.writeDouble(count);
+			out.writeDouble(idf);
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			termId = WritableUtils.readVInt(in);
+			count = in.readDouble();
+			idf = in.readDouble();
+		}
+	}
+
+	// Keys the entries by term. Comment lines (%) are skipped, and so is the size line following them at
+	// the start of the file.
+	public static class MatrixEntryMapper extends Mapper<LongWritable, Text, IntWritable, DocCountWritable> {
+		private boolean sizeLineSeen;
+		private final IntWritable termId = new IntWritable();
+		private final DocCountWritable entry = new DocCountWritable();
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			sizeLineSeen = ((FileSplit) context.getInputSplit()).getStart() != 0;
+		}
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			String line = value.toString().trim();
+			if (line.isEmpty() || line.startsWith("%")) {
+				return;
+			}
+			if (!sizeLineSeen) {
+				sizeLineSeen = true;
+				return;
+			}
+			String[] parts = line.split("\\s+");
+			try {
+				termId.set(Integer.parseInt(parts[0]));
+				entry.set(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]));
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				context.getCounter(AverageCounter.PARSE_FAILURES).increment(1);
+				return;
+			}
+			context.write(termId, entry);
+		}
+	}
+
+	// All documents of one term, their number is the document frequency. Re-keys the entries by document.
+	public static class DocumentFrequencyReducer extends Reducer<IntWritable, DocCountWritable, IntWritable, TermCountWritable> {
+		private double documents;
+		private int[] docIds = new int[64];
+		private double[] counts = new double[64];
+		private final IntWritable docId = new IntWritable();
+		private final TermCountWritable entry = new TermCountWritable();
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			documents = context.getConfiguration().getInt("doc_count", 0);
+		}
+
+		@Override
+		protected void reduce(IntWritable termId, Iterable<DocCountWritable> values, Context context)
+				throws IOException, InterruptedException {
+			int n = 0;
+			for (DocCountWritable value : values) {
+				if (n == docIds.length) {
+					docIds = Arrays.copyOf(docIds, n * 2);
+					counts = Arrays.copyOf(counts, n * 2);
+				}
+				docIds[n] = value.getDocId();
+				counts[n++] = value.getCount();
+			}
+
+			double idf = Math.log10(documents / n);
+			for (int i = 0; i < n; i++) {
+				docId.set(docIds[i]);
+				entry.set(termId.get(), counts[i], idf);
+				context.write(docId, entry);
+			}
+		}
+	}
+
+	// All terms of one document, their counts add up to the document length
+	public static class TfIdfReducer extends Reducer<IntWritable, TermCountWritable, IntWritable, TermPartialWritable> {
+		private int[] termIds = new int[256];
+		private double[] counts = new double[256];
+		private double[] idfs = new double[256];
+		private final TermPartialWritable partial = new TermPartialWritable();
+
+		@Override
+		protected void reduce(IntWritable docId, Iterable<TermCountWritable> values, Context context)
+				throws IOException, InterruptedException {
+			int n = 0;
+			double length = 0;
+			for (TermCountWritable value : values) {
+				if (n == termIds.length) {
+					termIds = Arrays.copyOf(termIds, n * 2);
+					counts = Arrays.copyOf(counts, n * 2);
+					idfs = Arrays.copyOf(idfs, n * 2);
+				}
+				termIds[n] = value.getTermId();
+				counts[n] = value.getCount();
+				idfs[n++] = value.getIdf();
+				length += value.getCount();
+			}
+
+			for (int i = 0; i < n; i++) {
+				partial.set(termIds[i], counts[i] / length * idfs[i], 1);
+				context.write(docId, partial);
+			}
+		}
+	}
+
+	// Chained behind TfIdfReducer: swaps the document for its class, the key AverageMapper uses
+	public static class DocClassMapper extends Mapper<IntWritable, TermPartialWritable, Text, TermPartialWritable> {
+		private IdDictionary docNames;
+		private final Text className = new Text();
+
+		@Override
+		protected void setup(Context context) throws IOException, InterruptedException {
+			docNames = IdDictionary.loadShared(context.getConfiguration(), "docIdMap");
+		}
+
+		@Override
+		protected void map(IntWritable docId, TermPartialWritable value, Context context)
+				throws IOException, InterruptedException {
+			String fullDocName = getFullDocName(docId.get(), docNames);
+			if (fullDocName == null) {
+				context.getCounter(AverageCounter.DICTIONARY_MISSES).increment(1);
+				return;
+			}
+			className.set(fullDocName.split("\\.")[0]);
+			context.write(className, value);
+		}
+	}
+
+	// Jobs 1 and 2 of -D pipeline=tfidf, leaving the per-class partials in <work>/partials
+	private static boolean runTfIdfPipeline(Configuration conf, Path matrix, Path work) throws Exception {
+		Job frequency = Job.getInstance(conf, "TF-IDF document frequency");
+		frequency.setJarByClass(HighestAverage.class);
+		frequency.setMapperClass(MatrixEntryMapper.class);
+		frequency.setReducerClass(DocumentFrequencyReducer.class);
+		frequency.setMapOutputKeyClass(IntWritable.class);
+		frequency.setMapOutputValueClass(DocCountWritable.class);
+		frequency.setOutputKeyClass(IntWritable.class);
+		frequency.setOutputValueClass(TermCountWritable.class);
+		frequency.setOutputFormatClass(SequenceFileOutputFormat.class);
+		FileInputFormat.addInputPath(frequency, matrix);
+		FileOutputFormat.setOutputPath(frequency, new Path(work, "entries"));
+		if (!frequency.waitForCompletion(true)) {
+			return false;
+		}
+
+		Job tfidf = Job.getInstance(conf, "TF-IDF per class");
+		tfidf.setJarByClass(HighestAverage.class);
+		tfidf.setInputFormatClass(SequenceFileInputFormat.class);
+		tfidf.setMapperClass(Mapper.class);
+		tfidf.setMapOutputKeyClass(IntWritable.class);
+		tfidf.setMapOutputValueClass(TermCountWritable.class);
+		ChainReducer.setReducer(tfidf, TfIdfReducer.class, IntWritable.class, TermCountWritable.class,
+				IntWritable.class, TermPartialWritable.class, new Configuration(false));
+		ChainReducer.addMapper(tfidf, DocClassMapper.class, IntWritable.class, TermPartialWritable.class,
+				Text.class, TermPartialWritable.class, new Configuration(false));
+		IdDictionary.addToCache(tfidf, conf.get("input"), "docIdMap");
+		tfidf.setOutputKeyClass(Text.class);
+		tfidf.setOutputValueClass(TermPartialWritable.class);
+		tfidf.setOutputFormatClass(SequenceFileOutputFormat.class);
+		FileInputFormat.addInputPath(tfidf, new Path(work, "entries"));
+		FileOutputFormat.setOutputPath(tfidf, new Path(work, "partials"));
+		return tfidf.waitForCompletion(true);
+	}
+
     public static void main(String[] args) throws Exception {
         // Configure and run the MapReduce job
+        // Optional settings come as -D key=value before the positional arguments,
+        // e.g. -D map_threads=8 to run the mapper on several threads per task
         Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
         FileSystem fs = FileSystem.get(conf);
         String termsFile = "bbc.terms";
         String docsFile = "bbc.docs";
 
         conf.set("input", args[0]);
         conf.set("output_avg", args[1]);
+        // Optional third argument: how many terms to report per class
+        conf.setInt("top_n", args.length > 2 ? Integer.parseInt(args[2]) : AverageReducer.DEFAULT_TOP_N);
 
 		if (fs.exists(new Path(conf.get("output_avg")))) {
             fs.delete(new Path(conf.get("output_avg")), true);
@@ -192,25 +1517,130 @@ public class HighestAverage {
 		String termIdMapPath = conf.get("input") + "/termIdMap.txt";
 		String categoryDocCountPath = conf.get("input") + "/categoryDocCount.txt";
 
-        termIdMap = readTermIds(termPath, fs);
-        docIdMap = readDocIds(docsPath, fs);
+        Map<String, Integer> termIdMap = readTermIds(termPath, fs);
+        Map<String, Integer> docIdMap = readDocIds(docsPath, fs);
+		boolean pipeline = "tfidf".equals(conf.get("pipeline"));
+		// -D state_dir=<dir> keeps the summed scores and counts of every (class, term) of this run in <dir>,
+		// as SequenceFiles of (class, TermPartialWritable). -D delta=<file> with the same state_dir then reads
+		// only the new task_1_4.mtx lines in <file> and merges them into the stored totals, so a refresh
+		// costs the new lines plus one pass over the totals instead of the whole matrix.
+		String stateDir = conf.get("state_dir");
+		String delta = conf.get("delta");
+		if (delta != null && (stateDir == null || pipeline || !fs.exists(new Path(stateDir)))) {
+			System.err.println("-D delta needs the -D state_dir of an earlier run and no -D pipeline");
+			System.exit(1);
+		}
+		// -D top_engine=sketch ranks each class from Count-Min sketches in fixed memory (see TermSketch,
+		// -D sketch_epsilon / sketch_delta / sketch_candidates). It keeps no exact totals to store.
+		if (stateDir != null && "sketch".equals(conf.get("top_engine", "exact"))) {
+			System.err.println("-D state_dir needs the exact totals of -D top_engine=exact");
+			System.exit(1);
+		}
+		conf.setInt("doc_count", docIdMap.size());
 		
 		Map<String,Integer> categoryDocCount =  numberOfDocEachCategory(docIdMap);
-		saveDocIdMapToHDFS(docIdMap, docIdMapPath);
-		saveTermIdMapToHDFS(termIdMap, termIdMapPath);
-		saveCategoryCountToHdfs(categoryDocCount, categoryDocCountPath);
+		conf.setStrings("term_counter_classes", new TreeMap<>(categoryDocCount).keySet().stream()
+				.limit(MAX_CLASS_COUNTERS).toArray(String[]::new));
+		// Binary sidecars so every map task can skip parsing the text maps
+		// (written first: the save helpers below close the shared FileSystem)
+		IdDictionary.fromMap(docIdMap).writeBinary(fs, new Path(conf.get("input") + "/docIdMap.bin"));
+		IdDictionary.fromMap(termIdMap).writeBinary(fs, new Path(conf.get("input") + "/termIdMap.bin"));
+		if (!pipeline) {
+			// The pipeline jobs only read the binary sidecars
+			saveDocIdMapToHDFS(docIdMap, docIdMapPath);
+			saveTermIdMapToHDFS(termIdMap, termIdMapPath);
+			saveCategoryCountToHdfs(categoryDocCount, categoryDocCountPath);
+		}
+
+		// -D matrix_format=binary reads task_1_4.smx, converted from task_1_4.mtx when that is newer or was
+		// written with another -D matrix_quantize / matrix_block_entries
+		boolean readBinaryMatrix = !pipeline && delta == null && "binary".equals(conf.get("matrix_format", "text"));
+		Path textMatrix = new Path(args[0] + "/task_1_4.mtx");
+		Path binaryMatrix = new Path(args[0] + "/task_1_4.smx");
+		FileSystem matrixFs = FileSystem.get(conf);
+		boolean quantize = conf.getBoolean("matrix_quantize", false);
+		int blockEntries = conf.getInt("matrix_block_entries", 1 << 16);
+		if (readBinaryMatrix && matrixFs.exists(textMatrix) && (!matrixFs.exists(binaryMatrix)
+				|| matrixFs.getFileStatus(binaryMatrix).getModificationTime()
+						< matrixFs.getFileStatus(textMatrix).getModificationTime()
+				|| !matrixMatches(matrixFs, binaryMatrix, quantize, blockEntries))) {
+			convertMatrix(matrixFs, textMatrix, binaryMatrix, quantize, blockEntries);
+		}
+
+		Path pipelineDir = new Path(args[1] + "_pipeline");
+		if (pipeline) {
+			fs.delete(pipelineDir, true);
+			Path matrix = new Path(args[0] + "/" + conf.get("matrix", "bbc.mtx"));
+			if (!runTfIdfPipeline(conf, matrix, pipelineDir)) {
+				System.exit(1);
+			}
+		}
 
         Job job = Job.getInstance(conf, "Average TF-IDF per Term per Class");
         job.setJarByClass(HighestAverage.class);
-        job.setMapperClass(AverageMapper.class);
+        int mapThreads = conf.getInt("map_threads", 1);
+        if (pipeline) {
+            // The partials are already keyed by class
+            job.setMapperClass(Mapper.class);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            FileInputFormat.addInputPath(job, new Path(pipelineDir, "partials"));
+        } else if (delta != null) {
+            // The new lines go through AverageMapper, the stored partials straight to the combiner
+            MultipleInputs.addInputPath(job, new Path(delta), TextInputFormat.class, AverageMapper.class);
+            MultipleInputs.addInputPath(job, new Path(stateDir), SequenceFileInputFormat.class, Mapper.class);
+        } else if (mapThreads > 1) {
+            // Each thread gets its own mapper instance, the dictionaries are shared
+            job.setMapperClass(MultithreadedMapper.class);
+            if (readBinaryMatrix) {
+                MultithreadedMapper.setMapperClass(job, SparseRowMapper.class);
+            } else {
+                MultithreadedMapper.setMapperClass(job, AverageMapper.class);
+            }
+            MultithreadedMapper.setNumberOfThreads(job, mapThreads);
+        } else {
+            job.setMapperClass(readBinaryMatrix ? SparseRowMapper.class : AverageMapper.class);
+        }
+        if (readBinaryMatrix) {
+            job.setInputFormatClass(SparseMatrixInputFormat.class);
+            FileInputFormat.addInputPath(job, binaryMatrix);
+        }
+        job.setCombinerClass(AverageCombiner.class);
         job.setReducerClass(AverageReducer.class);
+        job.setNumReduceTasks(conf.getInt("reducers", conf.getInt("mapreduce.job.reduces", 1)));
+        if (job.getNumReduceTasks() > 1) {
+            job.setPartitionerClass(ClassPartitioner.class);
+        }
+        IdDictionary.addToCache(job, conf.get("input"), "docIdMap");
+        IdDictionary.addToCache(job, conf.get("input"), "termIdMap");
         job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Text.class);
+        job.setMapOutputValueClass(TermPartialWritable.class);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(job, new Path(args[0] + "/task_1_4.mtx"));
+        if (!pipeline && !readBinaryMatrix && delta == null) {
+            FileInputFormat.addInputPath(job, textMatrix);
+        }
+        if (stateDir != null) {
+            MultipleOutputs.addNamedOutput(job, STATE_OUTPUT, SequenceFileOutputFormat.class, Text.class,
+                    TermPartialWritable.class);
+        }
         FileOutputFormat.setOutputPath(job, new Path(args[1]));
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        boolean succeeded = job.waitForCompletion(true);
+        if (succeeded) {
+            mergeClassOutputs(FileSystem.get(conf), new Path(args[1]), new Path(conf.get("output_avg") + "/task_1_5.txt"));
+            if (stateDir != null) {
+                replaceState(FileSystem.get(conf), new Path(args[1]), new Path(stateDir));
+            }
+        }
+        Counters counters = job.getCounters();
+        long parseFailures = counters.findCounter(AverageCounter.PARSE_FAILURES).getValue();
+        long misses = counters.findCounter(AverageCounter.DICTIONARY_MISSES).getValue();
+        if (parseFailures > 0 || misses > 0) {
+            System.out.println("Skipped " + parseFailures + " malformed matrix lines, " + misses + " ids missing from the dictionaries");
+        }
+        if (pipeline) {
+            FileSystem.get(conf).delete(pipelineDir, true);
+        }
+        System.exit(succeeded ? 0 : 1);
     }
 	
 	public static void saveDocIdMapToHDFS(Map<String, Integer> docIdMap, String filePath) {
@@ -223,7 +1653,7 @@ public class HighestAverage {
             Path outputPath = new Path(filePath);
             
             // Open output stream to HDFS file
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true)));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true), StandardCharsets.UTF_8));
 
             // Write docIdMap entries to the file
             for (Map.Entry<String, Integer> entry : docIdMap.entrySet()) {
@@ -251,7 +1681,7 @@ public class HighestAverage {
             Path outputPath = new Path(filePath);
 
             // Open output stream to HDFS file
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true)));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true), StandardCharsets.UTF_8));
 
             // Write docIdMap entries to the file
             for (Map.Entry<String, Integer> entry : termIdMap.entrySet()) {
@@ -273,7 +1703,7 @@ public class HighestAverage {
         Configuration conf = new Configuration();
         FileSystem fs = FileSystem.get(conf);
 		Path outputPath = new Path(filePath);
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true)));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true), StandardCharsets.UTF_8));
 		// Write docIdMap entries to the file
 		for (Map.Entry<String, Integer> entry : categoryCount.entrySet()) {
 			writer.write(entry.getKey() + "," + entry.getValue() + "\n");
@@ -287,7 +1717,7 @@ public class HighestAverage {
     private static Map<String, Integer> readTermIds(Path termPath, FileSystem fs) throws IOException {
 		Map<String, Integer> termIdMapTemp = new HashMap<>();
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(termPath)));
+		BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(termPath), StandardCharsets.UTF_8));
 		String line;
 		int id = 1;
 		while ((line = br.readLine()) != null) {
@@ -302,7 +1732,7 @@ public class HighestAverage {
     private static Map<String, Integer> readDocIds(Path docsPath, FileSystem fs) throws IOException {
 		Map<String, Integer> docIdMapTemp = new HashMap<>();
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(docsPath)));
+		BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(docsPath), StandardCharsets.UTF_8));
 		String line;
 		int id = 1;
 		while ((line = br.readLine()) != null) {
@@ -341,22 +1771,51 @@ public class HighestAverage {
 	}
 
 
-    private static String getFullDocName(int docId, Map<String, Integer> docIdMap) {
-		for (Map.Entry<String, Integer> entry : docIdMap.entrySet()) {
-			if (entry.getValue() == docId) {
-			return entry.getKey();
+    private static String getFullDocName(int docId, IdDictionary docNames) {
+		return docNames.get(docId);
+	}
+	
+	private static String getTermName(int termId, IdDictionary termNames) {
+		return termNames.get(termId);
+	}
+
+	// One "class: term:score,...: " entry per class in class order, like the single reducer wrote it,
+	// gathered from the part-r-* files of all reducers
+	private static void mergeClassOutputs(FileSystem fs, Path jobOutput, Path merged) throws IOException {
+		Map<String, String> entries = new TreeMap<>();
+		for (FileStatus status : fs.globStatus(new Path(jobOutput, "part-r-*"))) {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					entries.put(line.substring(0, line.indexOf(": ")), line);
+				}
+			}
+		}
+		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(merged, true), StandardCharsets.UTF_8))) {
+			for (String entry : entries.values()) {
+				bw.write(entry + ": ");
 			}
 		}
-			return null;
 	}
-	
-	private static String getTermName(int termId, Map<String, Integer> termIdMap) {
-		for (Map.Entry<String, Integer> entry : termIdMap.entrySet()) {
-			if (entry.getValue() == termId) {
-			   return entry.getKey();
+
+	// Moves the state-r-* files of the job into stateDir. The previous totals stay in place until all new
+	// files are moved next to them, a failed job leaves them untouched.
+	private static void replaceState(FileSystem fs, Path jobOutput, Path stateDir) throws IOException {
+		Path next = new Path(stateDir.getParent(), stateDir.getName() + "_next");
+		fs.delete(next, true);
+		fs.mkdirs(next);
+		for (FileStatus status : fs.globStatus(new Path(jobOutput, STATE_OUTPUT + "-r-*"))) {
+			if (!fs.rename(status.getPath(), new Path(next, status.getPath().getName()))) {
+				throw new IOException("Could not move " + status.getPath() + " to " + next);
 			}
 		}
-		return null;
+		fs.delete(stateDir, true);
+		if (!fs.rename(next, stateDir)) {
+			throw new IOException("Could not move " + next + " to " + stateDir);
+		}
 	}
-}
 
+	private static long millisSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1_000_000;
+	}
+}
@@ -1,53 +1,302 @@
-import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
 
 public class CSVReader {
     public static void main(String[] args) throws Exception {
+        // Initialize Hadoop configuration, -D output_format=binary writes raw doubles instead of text
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
         if (args.length < 2) {
-            System.err.println("Usage: CSVReader <inputCsvFile> <outputTextFile>");
+            System.err.println("Usage: CSVReader [-D output_format=binary] <inputCsvFile> <outputTextFile>");
             System.exit(1);
         }
-
-        // Initialize Hadoop configuration and FileSystem
-        Configuration conf = new Configuration();
         FileSystem fs = FileSystem.get(conf);
 
+        if ("binary".equals(conf.get("output_format", "text"))) {
+            writeBinary(conf, fs, new Path(args[0]), new Path(args[1]));
+            return;
+        }
+
         // Path to the CSV file (provided as command-line argument)
         Path csvFilePath = new Path(args[0]);
 
         // Path to the output file in HDFS (provided as command-line argument)
         Path outputPath = new Path(args[1]);
 
-        // Open an InputStream for the CSV file
-        try (InputStream inputStream = fs.open(csvFilePath);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath)))) {
-            // Read and discard the first line (headers)
-            reader.readLine();
-
-	    // Read and process each line of the CSV file
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Split the line into fields using comma as delimiter
-                String[] fields = line.split(",");
-                
-                // Assuming the first column is the class and the rest are features
-                String classLabel = fields[0].trim();
-                double x1 = Double.parseDouble(fields[1].trim());
-                double x2 = Double.parseDouble(fields[2].trim());
-
-                // Write the data to the output text file in HDFS
-                writer.write(String.format("%.9f", x1) + " " + String.format("%.9f", x2));
-                writer.newLine(); // Add a new line
+        // Write the features of each row to the output text file, "%.9f" and separated by spaces
+        convert(conf, fs, csvFilePath, outputPath, false, 0);
+    }
+
+    // Splits the CSV into byte ranges of -D chunk_size bytes (8 MB by default) converted on -D local_threads
+    // threads (all cores by default). The converted chunks are appended to the single output file in input
+    // order, at most two chunks per thread are held in memory.
+    private static void convert(Configuration conf, FileSystem fs, Path csvFilePath, Path outputPath,
+            boolean binary, int dimension) throws IOException, InterruptedException {
+        long length = fs.getFileStatus(csvFilePath).getLen();
+        long chunkSize = conf.getLong("chunk_size", 8L << 20);
+        int threads = conf.getInt("local_threads", Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<ByteArrayOutputStream>> pending = new ArrayDeque<>();
+
+        try (OutputStream out = fs.create(outputPath)) {
+            long start = 0;
+            while (start < length || !pending.isEmpty()) {
+                while (start < length && pending.size() < threads * 2) {
+                    long end = Math.min(length, start + chunkSize);
+                    pending.add(pool.submit(new ChunkConverter(conf, fs, csvFilePath, start, end, binary, dimension)));
+                    start = end;
+                }
+                try {
+                    pending.poll().get().writeTo(out);
+                } catch (ExecutionException e) {
+                    throw new IOException("Converting " + csvFilePath + " failed", e.getCause());
+                }
             }
+        } finally {
+            pool.shutdownNow();
         }
     }
-}
 
+    // Converts the rows whose first byte lies in [start, end), like LineRecordReader does for a split: the
+    // chunk starts reading one byte early and drops everything up to the first line break, which also drops
+    // the header in the first chunk. Numbers are parsed straight from the line bytes.
+    private static class ChunkConverter implements Callable<ByteArrayOutputStream> {
+        private final Configuration conf;
+        private final FileSystem fs;
+        private final Path path;
+        private final long start;
+        private final long end;
+        private final boolean binary;
+        private final int dimension;
+        private final DecimalParser parser = new DecimalParser();
+        private final byte[] scratch = new byte[32];
+
+        ChunkConverter(Configuration conf, FileSystem fs, Path path, long start, long end, boolean binary,
+                int dimension) {
+            this.conf = conf;
+            this.fs = fs;
+            this.path = path;
+            this.start = start;
+            this.end = end;
+            this.binary = binary;
+            this.dimension = dimension;
+        }
+
+        @Override
+        public ByteArrayOutputStream call() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) (end - start) + 1024);
+
+            try (FSDataInputStream in = fs.open(path)) {
+                long pos = start == 0 ? 0 : start - 1;
+                in.seek(pos);
+                try (LineReader reader = new LineReader(in, conf)) {
+                    Text line = new Text();
+                    pos += reader.readLine(line);
+
+                    while (pos < end) {
+                        int consumed = reader.readLine(line);
+                        if (consumed == 0) {
+                            break;
+                        }
+                        convertLine(line.getBytes(), line.getLength(), pos, out);
+                        pos += consumed;
+                    }
+                }
+            }
+            return out;
+        }
+
+        private void convertLine(byte[] bytes, int length, long pos, ByteArrayOutputStream out) throws IOException {
+            // Assuming the first column is the class and the rest are features
+            int from = 0;
+            while (from < length && bytes[from] != ',') {
+                from++;
+            }
+            if (from == length) {
+                // Blank line or label only
+                return;
+            }
+
+            int features = 0;
+            while (from < length && (!binary || features < dimension)) {
+                int to = from + 1;
+                while (to < length && bytes[to] != ',') {
+                    to++;
+                }
+                if (binary) {
+                    writeDoubleLE(out, parser.parseDouble(bytes, from + 1, to));
+                } else {
+                    if (features > 0) {
+                        out.write(' ');
+                    }
+                    writeFixed9(out, bytes, from + 1, to);
+                }
+                features++;
+                from = to;
+            }
+            if (binary && features < dimension) {
+                throw new IOException("Row at byte " + pos + " of " + path + " has " + features
+                        + " features, expected " + dimension);
+            }
+            if (!binary) {
+                out.write('\n');
+            }
+        }
+
+        // Same text as String.format("%.9f", value). A plain decimal with at most 9 fraction digits and
+        // 15 significant digits is exactly what Java formats, so it is only padded; anything else goes
+        // through the JDK.
+        private void writeFixed9(ByteArrayOutputStream out, byte[] bytes, int from, int to) {
+            if (parser.parse(bytes, from, to) && parser.scale <= 9 && parser.significant <= 15
+                    && parser.significant - parser.scale <= 9) {
+                long units = parser.unscaled * POW10[9 - parser.scale];
+                if (parser.negative) {
+                    out.write('-');
+                }
+                writeDigits(out, units / 1_000_000_000L, 1);
+                out.write('.');
+                writeDigits(out, units % 1_000_000_000L, 9);
+                return;
+            }
+            byte[] text = String.format(Locale.ROOT, "%.9f", parser.parseDouble(bytes, from, to))
+                    .getBytes(StandardCharsets.US_ASCII);
+            out.write(text, 0, text.length);
+        }
+
+        // Non-negative value in decimal, left-padded with zeros to minDigits
+        private void writeDigits(ByteArrayOutputStream out, long value, int minDigits) {
+            int pos = scratch.length;
+            do {
+                scratch[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0 || scratch.length - pos < minDigits);
+            out.write(scratch, pos, scratch.length - pos);
+        }
 
+        private static void writeDoubleLE(ByteArrayOutputStream out, double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < Double.BYTES; i++) {
+                out.write((int) (bits >>> (8 * i)));
+            }
+        }
+    }
+
+    private static final long[] POW10 = new long[19];
+    private static final double[] POW10_DOUBLE = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        for (int i = 0; i < POW10_DOUBLE.length; i++) {
+            POW10_DOUBLE[i] = i < POW10.length ? POW10[i] : POW10_DOUBLE[i - 1] * 10;
+        }
+    }
+
+    // Parses a plain decimal field ("-12.034", surrounding blanks allowed) without allocating: the digits
+    // without the point go to unscaled and the number of fraction digits to scale. Exponents and other
+    // forms are left to Double.parseDouble.
+    private static class DecimalParser {
+        boolean negative;
+        long unscaled;
+        int scale;
+        int significant;
+
+        boolean parse(byte[] bytes, int from, int to) {
+            while (from < to && (bytes[from] == ' ' || bytes[from] == '\t')) {
+                from++;
+            }
+            while (to > from && (bytes[to - 1] == ' ' || bytes[to - 1] == '\t')) {
+                to--;
+            }
+            negative = false;
+            unscaled = 0;
+            scale = 0;
+            significant = 0;
+            if (from < to && (bytes[from] == '-' || bytes[from] == '+')) {
+                negative = bytes[from] == '-';
+                from++;
+            }
+
+            boolean point = false;
+            boolean digits = false;
+            for (int i = from; i < to; i++) {
+                byte b = bytes[i];
+                if (b == '.' && !point) {
+                    point = true;
+                } else if (b >= '0' && b <= '9') {
+                    digits = true;
+                    if (significant > 0 || b != '0') {
+                        // More digits than a long holds, the caller falls back anyway
+                        if (++significant > 18) {
+                            return false;
+                        }
+                    }
+                    unscaled = unscaled * 10 + (b - '0');
+                    if (point) {
+                        scale++;
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return digits;
+        }
+
+        // Up to 15 significant digits and 22 fraction digits both the digits and the power of ten are exact
+        // doubles, so a single division gives the correctly rounded value
+        double parseDouble(byte[] bytes, int from, int to) {
+            if (parse(bytes, from, to) && significant <= 15 && scale < POW10_DOUBLE.length) {
+                double value = unscaled / POW10_DOUBLE[scale];
+                return negative ? -value : value;
+            }
+            return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII).trim());
+        }
+    }
+
+    // Flat file of little-endian doubles, one fixed-length record of all features per row, read by KMeans
+    // with -D input_format=binary. The record carries no separators, so the number of features goes to a
+    // "<output>.dim" sidecar file.
+    private static void writeBinary(Configuration conf, FileSystem fs, Path csvFilePath, Path outputPath)
+            throws Exception {
+        int dimension;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(csvFilePath), StandardCharsets.UTF_8))) {
+            // The header gives the number of feature columns
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException(csvFilePath + " is empty, there is no header to count the features from");
+            }
+            dimension = header.split(",").length - 1;
+        }
+        convert(conf, fs, csvFilePath, outputPath, true, dimension);
+
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(fs.create(new Path(outputPath.toString() + ".dim")), StandardCharsets.UTF_8))) {
+            writer.write(Integer.toString(dimension));
+            writer.newLine();
+        }
+    }
+}
@@ -1,292 +1,2687 @@
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-import java.io.BufferedWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.*;
-import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
-
-public class KMeans {
-    public static class KMeansMapper extends Mapper<LongWritable, Text, IntWritable, Text> {
-        private List<Point> centroids = new ArrayList<>();
-
-        protected void setup(Context context) throws IOException, InterruptedException {
-            Configuration conf = context.getConfiguration();
-            FileSystem fs = FileSystem.get(conf);
-            // Load centroids from file
-            Path centroidsPath = new Path(conf.get("output") + "/task_2_1_cluster/centroids.txt");
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(centroidsPath)))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    centroids.add(Point.fromString(line));
-                }
-            }
-        }
-
-        protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            Point dataPoint = Point.fromString(value.toString());
-            int closestCentroidIdx = 0;
-            double minDistance = Double.MAX_VALUE;
-
-            // Put the point into cluster using min euclidean distance
-            for (int i = 0; i < centroids.size(); i++) {
-                double distance = Point.euclideanDistance(dataPoint, centroids.get(i));
-
-                if (distance < minDistance) {
-                    minDistance = distance;
-                    closestCentroidIdx = i;
-                }
-            }
-            context.write(new IntWritable(closestCentroidIdx), value);
-        }
-    }
-
-    public static class KMeansReducer extends Reducer<IntWritable, Text, NullWritable, Text> {
-        private BufferedWriter bw;
-
-        @Override
-        protected void setup(Context context) throws IOException, InterruptedException {
-            Configuration conf = context.getConfiguration();
-            FileSystem fs = FileSystem.get(conf);
-            Path centroidsPath = new Path(conf.get("output") + "/task_2_1_cluster/centroids.txt");
-            bw = new BufferedWriter(new OutputStreamWriter(fs.create(centroidsPath)));
-        }
-
-        @Override
-        protected void reduce(IntWritable key, Iterable<Text> values, Context context)
-                throws IOException, InterruptedException {
-            List<Point> points = new ArrayList<>();
-
-            for (Text value : values) {
-                points.add(Point.fromString(value.toString()));
-            }
-            Point centroid = Point.computeCentroid(points);
-
-            // Output centroid coordinates only
-            context.write(NullWritable.get(), new Text(centroid.toString()));
-
-            // Write updated centroids to file
-            bw.write(centroid.toString() + "\n");
-        }
-
-        @Override
-        protected void cleanup(Context context) throws IOException, InterruptedException {
-            bw.close(); // Close the buffered writer to release resources
-        }
-    }
-
-    // Final reducer class for cluster information including centroid and points
-    public static class FinalKMeansReducer extends Reducer<IntWritable, Text, NullWritable, Text> {
-        private Configuration conf;
-        private FileSystem fs;
-        private BufferedWriter bw;
-        private Path centroidsPath;
-
-        @Override
-        protected void setup(Context context) throws IOException, InterruptedException {
-            conf = context.getConfiguration();
-            fs = FileSystem.get(conf);
-            centroidsPath = new Path(conf.get("output") + "/task_2_1_cluster/centroids.txt");
-            bw = new BufferedWriter(new OutputStreamWriter(fs.create(centroidsPath)));
-        }
-
-        @Override
-        protected void reduce(IntWritable key, Iterable<Text> values, Context context)
-                throws IOException, InterruptedException {
-            List<Point> points = new ArrayList<>();
-
-            for (Text value : values) {
-                points.add(Point.fromString(value.toString()));
-            }
-            Point centroid = Point.computeCentroid(points);
-
-            // Output cluster information including centroid and points
-            StringBuilder output = new StringBuilder();
-            output.append("Cluster ").append(key.get()).append(":\n");
-            output.append("Centroid: ").append(centroid).append("\n");
-            output.append("Points:\n");
-
-            for (Point point : points) {
-                output.append(point).append("\n");
-            }
-
-            context.write(NullWritable.get(), new Text(output.toString()));
-
-            // Write updated centroids to file
-            bw.write(centroid.toString() + "\n");
-
-            String outputFileName = "cluster_" + key.get() + ".txt";
-            Path outputPath = new Path(conf.get("output") + "/task_2_1_classes" + "/" + outputFileName);
-
-            // Write cluster information to a separate output file for each cluster
-            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath)))) {
-                bw.write(output.toString());
-            }
-        }
-
-        @Override
-        protected void cleanup(Context context) throws IOException, InterruptedException {
-            bw.close(); // Close the buffered writer to release resources
-        }
-    }
-
-    public static class Point {
-        private double x;
-        private double y;
-
-        public Point(double x, double y) {
-            this.x = x;
-            this.y = y;
-        }
-
-        // Init the point from data
-        public static Point fromString(String str) {
-            String[] parts = str.split(" ");
-            double x = Double.parseDouble(parts[0]);
-            double y = Double.parseDouble(parts[1]);
-
-            return new Point(x, y);
-        }
-
-        public static double euclideanDistance(Point p1, Point p2) {
-            return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
-        }
-
-        // Compute the centroid using arithmetic mean
-        public static Point computeCentroid(List<Point> points) {
-            double sumX = 0;
-            double sumY = 0;
-
-            for (Point point : points) {
-                sumX += point.x;
-                sumY += point.y;
-            }
-            double avgX = sumX / points.size();
-            double avgY = sumY / points.size();
-
-            return new Point(avgX, avgY);
-        }
-
-        @Override
-        public String toString() {
-            return x + " " + y;
-        }
-    }
-
-    public static void main(String[] args) throws Exception {
-        if (args.length < 4) {
-            System.err.println("Usage: CSVReader <inputCsvFile> <outputTextFile> k iterations");
-            System.exit(1);
-        }
-
-        Configuration conf = new Configuration();
-        conf.set("input", args[0]);
-        conf.set("output", args[1]);
-        conf.set("k", args[2]); // Set k value in configuration
-        conf.set("iteration", args[3]); // Set itegration value in configuration
-
-        // Read data points from input file
-        List<Point> dataPoints = readDataPoints(args[0]);
-
-        // Initialize centroids using random data points
-        List<Point> centroids = initializeCentroids(Integer.parseInt(conf.get("k")), dataPoints);
-
-        // Write centroid into file
-        FileSystem fs = FileSystem.get(conf);
-        Path centroidsPath = new Path(conf.get("output") + "/task_2_1_cluster/centroids.txt");
-
-        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(centroidsPath)))) {
-            for (Point centroid : centroids) {
-                bw.write(centroid.toString() + "\n");
-            }
-        }
-
-        Job job = Job.getInstance(conf, "KMeans");
-        job.setJarByClass(KMeans.class);
-        job.setMapperClass(KMeansMapper.class);
-        job.setReducerClass(KMeansReducer.class);
-        job.setMapOutputKeyClass(IntWritable.class);
-        job.setMapOutputValueClass(Text.class);
-        job.setOutputKeyClass(NullWritable.class);
-        job.setOutputValueClass(Text.class);
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        TextInputFormat.addInputPath(job, new Path(args[0]));
-
-        for (int i = 0; i < Integer.parseInt(conf.get("iteration")) - 1; i++) {
-            if (!fs.exists(new Path(args[1] + "/" + "_iter_" + (i + 1)))) {
-                fs.mkdirs(new Path(args[1] + "/" + "_iter_" + (i + 1))); // Create the output directory if it doesn't
-                                                                         // exist
-            } else {
-                TextOutputFormat.setOutputPath(job, new Path(args[1] + "/" + "_iter_" + (i + 1)));
-                job.waitForCompletion(true);
-                // Update centroids for the next iteration
-                centroids = updateCentroids(new Path(args[1] + "/" + "_iter_" + (i + 1)), fs);
-            }
-        }
-
-        // Set reducer back to original implementation
-        job.setReducerClass(FinalKMeansReducer.class);
-        // Set output path for the final iteration
-        TextOutputFormat.setOutputPath(job, new Path(args[1] + "/final_output"));
-        job.waitForCompletion(true);
-    }
-
-    private static List<Point> initializeCentroids(int k, List<Point> dataPoints) {
-        List<Point> centroids = new ArrayList<>();
-        Random random = new Random();
-
-        for (int i = 0; i < k; i++) {
-            int randomIndex = random.nextInt(dataPoints.size());
-            centroids.add(dataPoints.get(randomIndex));
-        }
-
-        return centroids;
-    }
-
-    private static List<Point> readDataPoints(String inputFile) throws IOException {
-        List<Point> dataPoints = new ArrayList<>();
-        Configuration conf = new Configuration();
-        FileSystem fs = FileSystem.get(conf);
-        Path inputPath = new Path(inputFile);
-
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(inputPath)))) {
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split("\\s+"); // Split by whitespace
-                double x = Double.parseDouble(parts[0]);
-                double y = Double.parseDouble(parts[1]);
-                dataPoints.add(new Point(x, y));
-            }
-        }
-
-        return dataPoints;
-    }
-
-    private static List<Point> updateCentroids(Path outputDir, FileSystem fs) throws IOException {
-        List<Point> centroids = new ArrayList<>();
-        Path centroidsPath = new Path(outputDir, "part-r-00000");
-
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(centroidsPath)))) {
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                Point centroid = Point.fromString(line); // Assuming tab-separated values
-                centroids.add(centroid);
-            }
-        }
-
-        return centroids;
-    }
-}
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.io.BufferedWriter;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FixedLengthInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+public class KMeans {
+    // Named output of the iteration reducers holding the SSE of each cluster
+    private static final String SSE_OUTPUT = "sse";
+    // Named output of the final mappers with -D assignments=true
+    private static final String ASSIGNMENTS_OUTPUT = "assignments";
+    // Named output of the iteration mappers with the points farthest from their centroids
+    private static final String FARTHEST_OUTPUT = "farthest";
+    // Named output of the iteration reducers with the silhouette sum of each model of a sweep
+    private static final String SILHOUETTE_OUTPUT = "silhouette";
+    // Files of the final reducers with their centroids for the driver, "centroids-r-<partition>"
+    private static final String FINAL_CENTROIDS_PREFIX = "centroids-r-";
+    // Files of the iteration mappers with -D assignment=hamerly, "bounds-<split>"
+    private static final String BOUNDS_PREFIX = "bounds-";
+    // Per-iteration summary next to iteration_stats.txt, one JSON object per line
+    private static final String SUMMARY_FILE = "iteration_summary.jsonl";
+    // Counter group with the points of every cluster as "cluster_<id>". Each counter counts against
+    // mapreduce.job.counters.max, so the group is only filled up to this many clusters.
+    private static final String CLUSTER_COUNTERS = "KMeans points per cluster";
+    private static final int MAX_CLUSTER_COUNTERS = 50;
+
+    // Counters of the iteration and final jobs. The *_MILLIS ones add up over all tasks: loading the
+    // centroids in setup, the map loop (reading the input included) and the reduce loop.
+    public enum KMeansCounter {
+        DISTANCE_EVALUATIONS, PARSE_FAILURES, EMPTY_CLUSTERS, SETUP_MILLIS, MAP_MILLIS, REDUCE_MILLIS
+    }
+
+    // Input values are Text lines or, with input_format=binary, fixed-length BytesWritable records
+    public static class KMeansMapper extends Mapper<LongWritable, Writable, IntWritable, PartialCentroidWritable> {
+        // Centroids stored back to back in one flat array
+        private double[] centroids;
+        private int centroidCount;
+        private int dimension;
+        private final IntWritable clusterId = new IntWritable();
+        private final PartialCentroidWritable partial = new PartialCentroidWritable();
+        private final PointWritable point = new PointWritable();
+        private final double[] distance = new double[1];
+        // Set with -D assignment=hamerly
+        private HamerlyBounds bounds;
+        // Share of the records kept by a mini-batch step, 1 for full passes
+        private double sampleRate;
+        private Random random;
+        // Counted locally, the counters are updated once from cleanup
+        private long distanceEvaluations;
+        private long mapStart;
+        // Re-seeding candidates, written to the "farthest" named output from cleanup
+        private FarthestPoints farthest;
+        // -D sweep_k: model m owns centroids modelStart[m] until modelStart[m + 1]; the cluster sums of all
+        // models are kept here and written once per cluster from cleanup
+        private int[] modelStart;
+        private double[] sweepSums;
+        private long[] sweepCounts;
+        private double[] sweepSse;
+        private double[] silhouette;
+
+        protected void setup(Context context) throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            Configuration conf = context.getConfiguration();
+            // Load centroids from file
+            CentroidTable table = CentroidTable.loadShared(conf);
+            centroids = table.centroids;
+            centroidCount = table.count;
+            dimension = table.dimension;
+            if ("hamerly".equals(conf.get("assignment", "lloyd"))) {
+                bounds = new HamerlyBounds(context, centroids, table.count);
+            }
+            sampleRate = conf.getDouble("minibatch_rate", 1.0);
+            random = new Random(conf.getLong("seed_salt", 0) * 31 + context.getTaskAttemptID().getTaskID().getId());
+            String sweepModels = conf.get("sweep_models");
+            if (sweepModels != null) {
+                String[] ks = sweepModels.split(",");
+                modelStart = new int[ks.length + 1];
+                for (int m = 0; m < ks.length; m++) {
+                    modelStart[m + 1] = modelStart[m] + Integer.parseInt(ks[m]);
+                }
+                sweepSums = new double[centroids.length];
+                sweepCounts = new long[table.count];
+                sweepSse = new double[table.count];
+                silhouette = new double[ks.length];
+            } else if (reseedEnabled(conf)) {
+                // No more clusters than k can go empty at once
+                farthest = new FarthestPoints(table.count);
+            }
+            context.getCounter(KMeansCounter.SETUP_MILLIS).increment(millisSince(start));
+            mapStart = System.nanoTime();
+        }
+
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            // Skipped records are not even parsed
+            if (sampleRate < 1 && random.nextDouble() >= sampleRate) {
+                return;
+            }
+            if (!readPoint(point, value, dimension, context)) {
+                return;
+            }
+            double[] coords = point.get().coords;
+            if (modelStart != null) {
+                assignToModels(coords);
+                return;
+            }
+
+            // Only the running sums are needed to move the centroid, not the point itself
+            if (bounds != null) {
+                clusterId.set(bounds.assign(coords, distance));
+            } else {
+                clusterId.set(closestCentroid(coords, centroids, distance));
+                distanceEvaluations += centroidCount;
+            }
+            partial.set(coords, 1, distance[0]);
+            context.write(clusterId, partial);
+            if (farthest != null) {
+                farthest.offer(distance[0], coords, 0, coords.length);
+            }
+        }
+
+        // The point joins its closest centroid in every model. One record per model and point would
+        // multiply the map output by the model count, so the sums stay in the task until cleanup.
+        private void assignToModels(double[] coords) {
+            for (int m = 0; m + 1 < modelStart.length; m++) {
+                double best = Double.MAX_VALUE;
+                double second = Double.MAX_VALUE;
+                int bestIdx = modelStart[m];
+                for (int c = modelStart[m]; c < modelStart[m + 1]; c++) {
+                    double d = Point.squaredDistance(coords, 0, centroids, c * dimension, dimension);
+                    if (d < best) {
+                        second = best;
+                        best = d;
+                        bestIdx = c;
+                    } else if (d < second) {
+                        second = d;
+                    }
+                }
+                sweepCounts[bestIdx]++;
+                sweepSse[bestIdx] += best;
+                for (int d = 0, base = bestIdx * dimension; d < dimension; d++) {
+                    sweepSums[base + d] += coords[d];
+                }
+
+                // Simplified silhouette: the distance to the own centroid against the next closest one
+                double a = Math.sqrt(best);
+                double b = Math.sqrt(second);
+                if (second < Double.MAX_VALUE && Math.max(a, b) > 0) {
+                    silhouette[m] += (b - a) / Math.max(a, b);
+                }
+            }
+            distanceEvaluations += centroidCount;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (modelStart != null) {
+                long points = 0;
+                for (int c = 0; c < sweepCounts.length; c++) {
+                    if (sweepCounts[c] > 0) {
+                        clusterId.set(c);
+                        partial.set(Arrays.copyOfRange(sweepSums, c * dimension, (c + 1) * dimension),
+                                sweepCounts[c], sweepSse[c]);
+                        context.write(clusterId, partial);
+                        points += c < modelStart[1] ? sweepCounts[c] : 0;
+                    }
+                }
+                // Model m goes out as key -1 - m, its silhouette sum in place of the SSE
+                for (int m = 0; m < silhouette.length; m++) {
+                    clusterId.set(-1 - m);
+                    partial.set(new double[0], points, silhouette[m]);
+                    context.write(clusterId, partial);
+                }
+            }
+            if (bounds != null) {
+                bounds.close();
+                distanceEvaluations = bounds.distanceEvaluations();
+            }
+            if (farthest != null) {
+                // (DoubleWritable, Text) records of the named output, not the shuffle types of the mapper
+                MultipleOutputs<?, ?> outputs = new MultipleOutputs<>(context);
+                for (int i = 0; i < farthest.size(); i++) {
+                    outputs.write(FARTHEST_OUTPUT, new DoubleWritable(farthest.distanceAt(i)),
+                            new Text(new Point(farthest.pointAt(i)).toString()));
+                }
+                outputs.close();
+            }
+            context.getCounter(KMeansCounter.DISTANCE_EVALUATIONS).increment(distanceEvaluations);
+            context.getCounter(KMeansCounter.MAP_MILLIS).increment(millisSince(mapStart));
+        }
+    }
+
+    // Hamerly's accelerated assignment. Every point keeps an upper bound on the distance to its centroid
+    // and a lower bound on the distance to any other centroid, stored per input split in the output of
+    // the iteration together with the centroids they refer to, and read by the next one. After the
+    // centroids move, the bounds are loosened by the shifts; a point whose upper bound stays below
+    // max(lower bound, half the distance from its centroid to the nearest other one) cannot change cluster
+    // and skips the scan over all k centroids.
+    public static class HamerlyBounds {
+        private static final int MAGIC = 0x484D4231; // "HMB1"
+
+        private final double[] centroids;
+        private final int k;
+        private final int dimension;
+        // Half the distance from each centroid to its nearest other centroid
+        private final double[] halfSeparation;
+        // How far each centroid moved since the bounds were written, and the two largest moves
+        private final double[] shift;
+        private double maxShift;
+        private double secondMaxShift;
+        private int maxShiftIdx = -1;
+        // Point-to-centroid and centroid-to-centroid distances computed so far
+        private long distanceEvaluations;
+
+        private DataInputStream previous;
+        private final DataOutputStream next;
+
+        public HamerlyBounds(Mapper<?, ?, ?, ?>.Context context, double[] centroids, int k)
+                throws IOException, InterruptedException {
+            this.centroids = centroids;
+            this.k = k;
+            this.dimension = k == 0 ? 0 : centroids.length / k;
+
+            halfSeparation = new double[k];
+            for (int i = 0; i < k; i++) {
+                double nearest = Double.MAX_VALUE;
+                for (int j = 0; j < k; j++) {
+                    if (j != i) {
+                        nearest = Math.min(nearest, distance(centroids, i * dimension, j));
+                    }
+                }
+                halfSeparation[i] = nearest / 2;
+            }
+            distanceEvaluations = (long) k * (k - 1);
+
+            // One bounds file per split, the same split covers the same points in every iteration. The new
+            // bounds go to the attempt's work path, only the committed attempt's file reaches the output.
+            Configuration conf = context.getConfiguration();
+            FileSplit split = (FileSplit) context.getInputSplit();
+            String boundsName = BOUNDS_PREFIX + Integer.toHexString(split.getPath().toString().hashCode()) + "-"
+                    + split.getStart();
+
+            shift = new double[k];
+            if (conf.get("bounds_dir") != null) {
+                Path boundsPath = new Path(conf.get("bounds_dir"), boundsName);
+                FileSystem fs = boundsPath.getFileSystem(conf);
+                if (fs.exists(boundsPath)) {
+                    previous = new DataInputStream(new BufferedInputStream(fs.open(boundsPath)));
+                    if (!readShifts()) {
+                        previous.close();
+                        previous = null;
+                    }
+                }
+            }
+
+            Path nextPath = new Path(FileOutputFormat.getWorkOutputPath(context), boundsName);
+            next = new DataOutputStream(new BufferedOutputStream(nextPath.getFileSystem(conf).create(nextPath, false)));
+            next.writeInt(MAGIC);
+            next.writeInt(k);
+            next.writeInt(dimension);
+            for (double value : centroids) {
+                next.writeDouble(value);
+            }
+        }
+
+        // Compare the centroids the stored bounds refer to with the current ones
+        private boolean readShifts() throws IOException {
+            if (previous.readInt() != MAGIC || previous.readInt() != k || previous.readInt() != dimension) {
+                return false;
+            }
+            double[] old = new double[centroids.length];
+            for (int i = 0; i < old.length; i++) {
+                old[i] = previous.readDouble();
+            }
+            distanceEvaluations += k;
+            for (int j = 0; j < k; j++) {
+                shift[j] = distance(old, j * dimension, j);
+                if (shift[j] > maxShift) {
+                    secondMaxShift = maxShift;
+                    maxShift = shift[j];
+                    maxShiftIdx = j;
+                } else if (shift[j] > secondMaxShift) {
+                    secondMaxShift = shift[j];
+                }
+            }
+            return true;
+        }
+
+        // Closest centroid of the point, its squared distance goes to squaredDistanceOut.
+        // The distance to the assigned centroid is always computed since the SSE needs it,
+        // so a pruned point costs one distance instead of k.
+        public int assign(double[] point, double[] squaredDistanceOut) throws IOException {
+            int assigned = -1;
+            double upper = 0;
+            double lower = 0;
+
+            if (previous != null) {
+                try {
+                    assigned = previous.readInt();
+                    previous.readDouble(); // the old upper bound, replaced by the exact distance below
+                    lower = previous.readDouble() - (assigned == maxShiftIdx ? secondMaxShift : maxShift);
+                } catch (EOFException e) {
+                    // Fewer stored points than this split holds, fall back to full scans
+                    previous.close();
+                    previous = null;
+                    assigned = -1;
+                }
+            }
+
+            if (assigned >= 0 && assigned < k) {
+                upper = Math.sqrt(Point.squaredDistance(point, 0, centroids, assigned * dimension, dimension));
+                distanceEvaluations++;
+                if (upper < Math.max(lower, halfSeparation[assigned])) {
+                    squaredDistanceOut[0] = upper * upper;
+                    write(assigned, upper, lower);
+                    return assigned;
+                }
+            }
+
+            // Bounds could not rule out a change: scan all centroids for the closest and second closest
+            double best = Double.MAX_VALUE;
+            double second = Double.MAX_VALUE;
+            int bestIdx = 0;
+            for (int j = 0; j < k; j++) {
+                double d = Point.squaredDistance(point, 0, centroids, j * dimension, dimension);
+                if (d < best) {
+                    second = best;
+                    best = d;
+                    bestIdx = j;
+                } else if (d < second) {
+                    second = d;
+                }
+            }
+            distanceEvaluations += k;
+            squaredDistanceOut[0] = best;
+            write(bestIdx, Math.sqrt(best), Math.sqrt(second));
+            return bestIdx;
+        }
+
+        private void write(int assigned, double upper, double lower) throws IOException {
+            next.writeInt(assigned);
+            next.writeDouble(upper);
+            next.writeDouble(lower);
+        }
+
+        // Distance between the centroid at offset in points and current centroid j
+        private double distance(double[] points, int offset, int j) {
+            return Math.sqrt(Point.squaredDistance(points, offset, centroids, j * dimension, dimension));
+        }
+
+        public long distanceEvaluations() {
+            return distanceEvaluations;
+        }
+
+        public void close() throws IOException {
+            if (previous != null) {
+                previous.close();
+            }
+            next.close();
+        }
+    }
+
+    // Centroids as the mappers use them, one flat array plus its shape. The driver writes centroids.bin next
+    // to centroids.txt and ships it through the distributed cache; tasks map the localized copy and share
+    // the decoded table with later tasks in the same JVM until a job brings a new version of the file.
+    // The table is shared, callers must not modify it.
+    public static class CentroidTable {
+        private static final String CACHE_NAME = "centroids.bin";
+        private static CentroidTable shared;
+        private static String sharedVersion;
+
+        final double[] centroids;
+        final int count;
+        final int dimension;
+
+        CentroidTable(double[] centroids, int count, int dimension) {
+            this.centroids = centroids;
+            this.count = count;
+            this.dimension = dimension;
+        }
+
+        static synchronized CentroidTable loadShared(Configuration conf) throws IOException {
+            File localized = new File(CACHE_NAME);
+            if (!localized.isFile()) {
+                // Not started through the driver, read centroids.txt
+                List<Point> points = loadCentroids(conf);
+                return new CentroidTable(flatten(points), points.size(), points.get(0).dimension());
+            }
+
+            String version = localized.getCanonicalPath() + "@" + localized.length() + "@" + localized.lastModified();
+            if (!version.equals(sharedVersion)) {
+                try (FileChannel channel = FileChannel.open(localized.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    int count = buffer.getInt();
+                    int dimension = buffer.getInt();
+                    double[] centroids = new double[count * dimension];
+                    buffer.asDoubleBuffer().get(centroids);
+                    shared = new CentroidTable(centroids, count, dimension);
+                    sharedVersion = version;
+                }
+            }
+            return shared;
+        }
+
+        // Layout: centroid count, dimension, then the coordinates as big-endian doubles
+        static void write(FileSystem fs, Path path, List<Point> centroids) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(path, true)))) {
+                out.writeInt(centroids.size());
+                out.writeInt(centroids.get(0).dimension());
+                for (Point centroid : centroids) {
+                    for (double value : centroid.coords) {
+                        out.writeDouble(value);
+                    }
+                }
+            }
+        }
+
+        static void addToCache(Job job, Configuration conf) throws IOException {
+            Path path = new Path(conf.get("output") + "/task_2_1_cluster/" + CACHE_NAME);
+            try {
+                job.addCacheFile(new URI(path.toUri() + "#" + CACHE_NAME));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // Mapper of the final pass, which still needs every point to list the cluster members. Cluster c is
+    // shuffled as two keys per slot s (see ClusterSlots, one slot per cluster unless it is split): 2s carries
+    // the summed coordinates, emitted from cleanup to every slot of the cluster, and 2s+1 the points
+    // themselves, so each reducer knows the centroid before the first point arrives.
+    public static class FinalKMeansMapper extends Mapper<LongWritable, Writable, IntWritable, PartialCentroidWritable> {
+        private double[] centroids;
+        private int dimension;
+        private double[] sums;
+        private long[] counts;
+        private final IntWritable clusterId = new IntWritable();
+        private final PartialCentroidWritable partial = new PartialCentroidWritable();
+        private final PointWritable point = new PointWritable();
+        // Set with -D assignments=true: point ID -> cluster ID as a SequenceFile next to the final output
+        private MultipleOutputs<?, ?> outputs;
+        private final LongWritable pointId = new LongWritable();
+        private final IntWritable assigned = new IntWritable();
+        private long recordLength;
+        private long mapStart;
+        private ClusterSlots slots;
+
+        protected void setup(Context context) throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            Configuration conf = context.getConfiguration();
+            // Load centroids from file
+            CentroidTable table = CentroidTable.loadShared(conf);
+            centroids = table.centroids;
+            dimension = table.dimension;
+            sums = new double[centroids.length];
+            counts = new long[table.count];
+            slots = new ClusterSlots(conf);
+            if (conf.getBoolean("assignments", false)) {
+                outputs = new MultipleOutputs<>(context);
+                // Binary records are numbered, text lines keep their byte offset as ID
+                recordLength = "binary".equals(conf.get("input_format", "text")) ? Double.BYTES * dimension : 1;
+            }
+            context.getCounter(KMeansCounter.SETUP_MILLIS).increment(millisSince(start));
+            mapStart = System.nanoTime();
+        }
+
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (!readPoint(point, value, dimension, context)) {
+                return;
+            }
+            double[] coords = point.get().coords;
+            int cluster = closestCentroid(coords, centroids, null);
+
+            // The points of a split cluster go round-robin over its slots
+            int slot = slots.firstSlot(cluster) + (int) (counts[cluster] % slots.shards(cluster));
+            counts[cluster]++;
+            for (int d = 0, base = cluster * dimension; d < dimension; d++) {
+                sums[base + d] += coords[d];
+            }
+            clusterId.set(2 * slot + 1);
+            partial.set(coords, 1, 0);
+            context.write(clusterId, partial);
+
+            if (outputs != null) {
+                pointId.set(key.get() / recordLength);
+                assigned.set(cluster);
+                outputs.write(ASSIGNMENTS_OUTPUT, pointId, assigned);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            long points = 0;
+            for (int j = 0; j < counts.length; j++) {
+                if (counts[j] > 0) {
+                    partial.set(Arrays.copyOfRange(sums, j * dimension, (j + 1) * dimension), counts[j], 0);
+                    for (int slot = slots.firstSlot(j); slot < slots.firstSlot(j) + slots.shards(j); slot++) {
+                        clusterId.set(2 * slot);
+                        context.write(clusterId, partial);
+                    }
+                    points += counts[j];
+                }
+            }
+            if (outputs != null) {
+                outputs.close();
+            }
+            context.getCounter(KMeansCounter.DISTANCE_EVALUATIONS).increment(points * counts.length);
+            context.getCounter(KMeansCounter.MAP_MILLIS).increment(millisSince(mapStart));
+        }
+    }
+
+    // Keeps both keys of a slot (see FinalKMeansMapper) on the same reducer
+    public static class FinalKMeansPartitioner extends Partitioner<IntWritable, PartialCentroidWritable>
+            implements Configurable {
+        private Configuration conf;
+        private ClusterSlots slots;
+
+        @Override
+        public void setConf(Configuration conf) {
+            this.conf = conf;
+            slots = new ClusterSlots(conf);
+        }
+
+        @Override
+        public Configuration getConf() {
+            return conf;
+        }
+
+        @Override
+        public int getPartition(IntWritable key, PartialCentroidWritable value, int numPartitions) {
+            return slots.partition(key.get() / 2, numPartitions);
+        }
+    }
+
+    // Reduce slots of the final pass. A cluster that would hold more than its share of the points on one
+    // reducer is split into several consecutive slots (-D cluster_shards, one count per cluster), and the
+    // slots are spread over the reducers by -D slot_partitions; the driver sets both from the cluster sizes
+    // of the last iteration. Without them every cluster is one slot on reducer cluster % reducers.
+    public static class ClusterSlots {
+        private final int[] firstSlot;
+        private final int[] shards;
+        private final int[] clusterOfSlot;
+        private final int[] partitionOfSlot;
+
+        public ClusterSlots(Configuration conf) {
+            String shardList = conf.get("cluster_shards");
+            if (shardList == null) {
+                firstSlot = null;
+                shards = null;
+                clusterOfSlot = null;
+                partitionOfSlot = null;
+                return;
+            }
+            shards = parseInts(shardList);
+            firstSlot = new int[shards.length + 1];
+            for (int c = 0; c < shards.length; c++) {
+                firstSlot[c + 1] = firstSlot[c] + shards[c];
+            }
+            clusterOfSlot = new int[firstSlot[shards.length]];
+            for (int c = 0; c < shards.length; c++) {
+                Arrays.fill(clusterOfSlot, firstSlot[c], firstSlot[c + 1], c);
+            }
+            partitionOfSlot = parseInts(conf.get("slot_partitions"));
+        }
+
+        private static int[] parseInts(String list) {
+            return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+        }
+
+        public int firstSlot(int cluster) {
+            return firstSlot == null ? cluster : firstSlot[cluster];
+        }
+
+        public int shards(int cluster) {
+            return shards == null ? 1 : shards[cluster];
+        }
+
+        public int cluster(int slot) {
+            return clusterOfSlot == null ? slot : clusterOfSlot[slot];
+        }
+
+        // Index of the slot within its cluster, 0 for the first
+        public int shard(int slot) {
+            return slot - firstSlot(cluster(slot));
+        }
+
+        public int partition(int slot, int numPartitions) {
+            return partitionOfSlot == null ? slot % numPartitions : partitionOfSlot[slot] % numPartitions;
+        }
+
+        // Splits every cluster larger than total / reducers into that many even parts (at most one per
+        // reducer) and places the slots largest first, each on the reducer with the fewest points so far
+        static void configure(Configuration conf, long[] counts, int reducers) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long target = Math.max(1, (total + reducers - 1) / reducers);
+            int[] shards = new int[counts.length];
+            List<long[]> slots = new ArrayList<>();
+            for (int c = 0, slot = 0; c < counts.length; c++) {
+                shards[c] = (int) Math.max(1, Math.min(reducers, (counts[c] + target - 1) / target));
+                for (int s = 0; s < shards[c]; s++, slot++) {
+                    slots.add(new long[] { slot, counts[c] / shards[c] });
+                }
+            }
+            slots.sort((a, b) -> Long.compare(b[1], a[1]));
+
+            int[] partitions = new int[slots.size()];
+            long[] load = new long[reducers];
+            for (long[] slot : slots) {
+                int least = 0;
+                for (int r = 1; r < reducers; r++) {
+                    if (load[r] < load[least]) {
+                        least = r;
+                    }
+                }
+                partitions[(int) slot[0]] = least;
+                load[least] += slot[1];
+            }
+            conf.set("cluster_shards", Arrays.stream(shards).mapToObj(String::valueOf).collect(Collectors.joining(",")));
+            conf.set("slot_partitions", Arrays.stream(partitions).mapToObj(String::valueOf).collect(Collectors.joining(",")));
+        }
+    }
+
+    // Point shipped as raw doubles, also decodes the text and flat binary input records
+    public static class PointWritable implements Writable {
+        private final Point point = new Point(new double[0]);
+
+        public Point get() {
+            return point;
+        }
+
+        public void set(double[] coords) {
+            ensureDimension(coords.length);
+            System.arraycopy(coords, 0, point.coords, 0, coords.length);
+        }
+
+        // Fill from an input value, either a whitespace separated line or a binary record
+        // of little-endian doubles (the record length gives the dimension)
+        public void set(Writable value) {
+            if (value instanceof BytesWritable) {
+                BytesWritable record = (BytesWritable) value;
+                ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(), 0, record.getLength())
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                ensureDimension(record.getLength() / Double.BYTES);
+                for (int i = 0; i < point.coords.length; i++) {
+                    point.coords[i] = buffer.getDouble();
+                }
+            } else {
+                String line = value.toString();
+                ensureDimension(Point.countValues(line));
+                Point.parse(line, point.coords);
+            }
+        }
+
+        private void ensureDimension(int dimension) {
+            if (point.coords.length != dimension) {
+                point.coords = new double[dimension];
+            }
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, point.coords.length);
+            for (double value : point.coords) {
+                out.writeDouble(value);
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            ensureDimension(WritableUtils.readVInt(in));
+            for (int i = 0; i < point.coords.length; i++) {
+                point.coords[i] = in.readDouble();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return point.toString();
+        }
+    }
+
+    // Running per-dimension sums and count of the points assigned to one centroid,
+    // plus their squared distances to it for the SSE of the iteration
+    public static class PartialCentroidWritable implements Writable {
+        private double[] sums = new double[0];
+        private long count;
+        private double sse;
+
+        public PartialCentroidWritable() {
+        }
+
+        public PartialCentroidWritable(double[] sums, long count, double sse) {
+            set(sums, count, sse);
+        }
+
+        // Keeps a reference to sums, callers write the partial before reusing the array
+        public void set(double[] sums, long count, double sse) {
+            this.sums = sums;
+            this.count = count;
+            this.sse = sse;
+        }
+
+        public double[] getSums() {
+            return sums;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getSse() {
+            return sse;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, sums.length);
+            for (double sum : sums) {
+                out.writeDouble(sum);
+            }
+            WritableUtils.writeVLong(out, count);
+            out.writeDouble(sse);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            int dimension = WritableUtils.readVInt(in);
+            if (sums.length != dimension) {
+                sums = new double[dimension];
+            }
+            for (int i = 0; i < dimension; i++) {
+                sums[i] = in.readDouble();
+            }
+            count = WritableUtils.readVLong(in);
+            sse = in.readDouble();
+        }
+    }
+
+    // Compensated (Kahan-Babuska/Neumaier) summation, keeps precision over millions of additions
+    public static class KahanSum {
+        private double sum;
+        private double compensation;
+
+        public void add(double value) {
+            double t = sum + value;
+            if (Math.abs(sum) >= Math.abs(value)) {
+                compensation += (sum - t) + value;
+            } else {
+                compensation += (value - t) + sum;
+            }
+            sum = t;
+        }
+
+        public double value() {
+            return sum + compensation;
+        }
+
+        public void reset() {
+            sum = 0;
+            compensation = 0;
+        }
+    }
+
+    // Compensated summation of whole vectors, one running sum per dimension
+    public static class KahanVector {
+        private double[] sum = new double[0];
+        private double[] compensation = new double[0];
+        private boolean empty = true;
+
+        public void add(double[] values) {
+            if (empty) {
+                if (sum.length != values.length) {
+                    sum = new double[values.length];
+                    compensation = new double[values.length];
+                }
+                empty = false;
+            }
+            for (int i = 0; i < values.length; i++) {
+                double t = sum[i] + values[i];
+                if (Math.abs(sum[i]) >= Math.abs(values[i])) {
+                    compensation[i] += (sum[i] - t) + values[i];
+                } else {
+                    compensation[i] += (values[i] - t) + sum[i];
+                }
+                sum[i] = t;
+            }
+        }
+
+        // Compensated sums divided by divisor, written into a new array
+        public double[] value(double divisor) {
+            double[] result = new double[sum.length];
+            for (int i = 0; i < sum.length; i++) {
+                result[i] = (sum[i] + compensation[i]) / divisor;
+            }
+            return result;
+        }
+
+        public void reset() {
+            Arrays.fill(sum, 0);
+            Arrays.fill(compensation, 0);
+            empty = true;
+        }
+    }
+
+    // The points farthest from their centroids among those offered, at most capacity of them, in a min-heap
+    // on the squared distance. Empty clusters are re-seeded from these (-D empty_clusters=reseed).
+    public static class FarthestPoints {
+        private final double[] distances;
+        private final double[][] points;
+        private int size;
+
+        public FarthestPoints(int capacity) {
+            distances = new double[capacity];
+            points = new double[capacity][];
+        }
+
+        // Copies the point at offset of coords only when it makes the cut
+        public void offer(double squaredDistance, double[] coords, int offset, int dimension) {
+            if (size == distances.length) {
+                if (size == 0 || squaredDistance <= distances[0]) {
+                    return;
+                }
+                distances[0] = distances[--size];
+                points[0] = points[size];
+                siftDown();
+            }
+            int i = size++;
+            while (i > 0 && distances[(i - 1) / 2] > squaredDistance) {
+                distances[i] = distances[(i - 1) / 2];
+                points[i] = points[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            distances[i] = squaredDistance;
+            points[i] = Arrays.copyOfRange(coords, offset, offset + dimension);
+        }
+
+        private void siftDown() {
+            double distance = distances[0];
+            double[] point = points[0];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                distances[i] = distances[child];
+                points[i] = points[child];
+                i = child;
+            }
+            distances[i] = distance;
+            points[i] = point;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double distanceAt(int i) {
+            return distances[i];
+        }
+
+        public double[] pointAt(int i) {
+            return points[i];
+        }
+    }
+
+    // Folds the partials of each centroid so a mapper ships one record per centroid
+    public static class KMeansCombiner
+            extends Reducer<IntWritable, PartialCentroidWritable, IntWritable, PartialCentroidWritable> {
+        private final KahanVector sums = new KahanVector();
+        private final KahanSum sse = new KahanSum();
+        private final PartialCentroidWritable partial = new PartialCentroidWritable();
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<PartialCentroidWritable> values, Context context)
+                throws IOException, InterruptedException {
+            sums.reset();
+            sse.reset();
+            long count = 0;
+
+            for (PartialCentroidWritable value : values) {
+                sums.add(value.getSums());
+                sse.add(value.getSse());
+                count += value.getCount();
+            }
+            partial.set(sums.value(1), count, sse.value());
+            context.write(key, partial);
+        }
+    }
+
+    // Emits "clusterId<TAB>x y" per centroid; the driver rewrites centroids.txt from these lines
+    public static class KMeansReducer extends Reducer<IntWritable, PartialCentroidWritable, IntWritable, Text> {
+        // SSE (IntWritable, DoubleWritable) and silhouette (IntWritable, Text) records
+        private MultipleOutputs<?, ?> outputs;
+        private final KahanVector sums = new KahanVector();
+        private final KahanSum sse = new KahanSum();
+        private final BitSet seen = new BitSet();
+        private boolean clusterCounters;
+        private long reduceStart;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            outputs = new MultipleOutputs<>(context);
+            clusterCounters = context.getConfiguration().getInt("k", 0) <= MAX_CLUSTER_COUNTERS;
+            reduceStart = System.nanoTime();
+        }
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<PartialCentroidWritable> values, Context context)
+                throws IOException, InterruptedException {
+            sums.reset();
+            sse.reset();
+            long count = 0;
+
+            // Stream the partial sums, memory does not grow with the cluster size
+            for (PartialCentroidWritable value : values) {
+                sums.add(value.getSums());
+                sse.add(value.getSse());
+                count += value.getCount();
+            }
+            if (key.get() < 0) {
+                // Sweep model -key - 1: silhouette sum and number of points
+                outputs.write(SILHOUETTE_OUTPUT, new IntWritable(-1 - key.get()), new Text(sse.value() + "\t" + count));
+                return;
+            }
+            Point centroid = new Point(sums.value(count));
+            seen.set(key.get());
+            if (clusterCounters) {
+                context.getCounter(CLUSTER_COUNTERS, "cluster_" + key.get()).increment(count);
+            }
+
+            // Output centroid coordinates, then the number of points behind them for mini-batch updates
+            context.write(key, new Text(centroid + "\t" + count));
+
+            // SSE of the cluster against the centroid used for this iteration's assignment
+            outputs.write(SSE_OUTPUT, key, new DoubleWritable(sse.value()));
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+            countEmptyClusters(context, seen, new ClusterSlots(context.getConfiguration()));
+            context.getCounter(KMeansCounter.REDUCE_MILLIS).increment(millisSince(reduceStart));
+        }
+    }
+
+    // Mini-batch steps read only a random share of the input splits (-D minibatch_fraction, at least one
+    // split), drawn again for every step from seed_salt
+    public static class SampledTextInputFormat extends TextInputFormat {
+        @Override
+        public List<InputSplit> getSplits(JobContext job) throws IOException {
+            return sampleSplits(super.getSplits(job), job.getConfiguration());
+        }
+    }
+
+    public static class SampledFixedLengthInputFormat extends FixedLengthInputFormat {
+        @Override
+        public List<InputSplit> getSplits(JobContext job) throws IOException {
+            return sampleSplits(super.getSplits(job), job.getConfiguration());
+        }
+    }
+
+    private static List<InputSplit> sampleSplits(List<InputSplit> splits, Configuration conf) {
+        int keep = (int) Math.ceil(splits.size() * conf.getDouble("minibatch_fraction", 0.1));
+        keep = Math.max(1, Math.min(splits.size(), keep));
+        List<InputSplit> sampled = new ArrayList<>(splits);
+        Collections.shuffle(sampled, new Random(conf.getLong("seed_salt", 0)));
+        return new ArrayList<>(sampled.subList(0, keep));
+    }
+
+    // Final reducer class for cluster information including centroid and points. Points are written as
+    // they arrive, memory does not grow with the cluster size.
+    public static class FinalKMeansReducer extends Reducer<IntWritable, PartialCentroidWritable, NullWritable, Text> {
+        private Path workPath;
+        private FileSystem fs;
+        private BufferedWriter bw;
+        private final KahanVector sums = new KahanVector();
+        private Point centroid;
+        private int centroidSlot = -1;
+        private final Point point = new Point(new double[0]);
+        private final Text line = new Text();
+        private final BitSet seen = new BitSet();
+        private boolean clusterCounters;
+        // -D final_listing=true also lists every cluster in part-r-*, which writes each point a second time
+        private boolean listing;
+        private long reduceStart;
+        private ClusterSlots slots;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            // Side files go to the work path of this attempt, the output committer moves the files of the
+            // successful attempt into final_output, so retried or speculative attempts do not collide
+            workPath = FileOutputFormat.getWorkOutputPath(context);
+            fs = workPath.getFileSystem(conf);
+            // "clusterId<TAB>x y" per cluster, the driver merges the files of all reducers into centroids.txt
+            Path centroidsPath = new Path(workPath,
+                    FINAL_CENTROIDS_PREFIX + String.format("%05d", context.getTaskAttemptID().getTaskID().getId()));
+            bw = new BufferedWriter(new OutputStreamWriter(fs.create(centroidsPath, true), StandardCharsets.UTF_8));
+            clusterCounters = conf.getInt("k", 0) <= MAX_CLUSTER_COUNTERS;
+            listing = conf.getBoolean("final_listing", false);
+            slots = new ClusterSlots(conf);
+            reduceStart = System.nanoTime();
+        }
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<PartialCentroidWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int slot = key.get() / 2;
+            int cluster = slots.cluster(slot);
+            int shard = slots.shard(slot);
+
+            // Even key: the per-mapper sums, sorted right before the points of the same slot
+            if (key.get() % 2 == 0) {
+                sums.reset();
+                long count = 0;
+                for (PartialCentroidWritable value : values) {
+                    sums.add(value.getSums());
+                    count += value.getCount();
+                }
+                centroid = new Point(sums.value(count));
+                centroidSlot = slot;
+                if (shard > 0) {
+                    // Every slot of a split cluster gets the same sums, the first one reports the cluster
+                    return;
+                }
+                seen.set(cluster);
+                if (clusterCounters) {
+                    context.getCounter(CLUSTER_COUNTERS, "cluster_" + cluster).increment(count);
+                }
+
+                // Write updated centroids to file
+                bw.write(cluster + "\t" + centroid + "\n");
+                return;
+            }
+            if (centroidSlot != slot) {
+                throw new IOException("No centroid sums before the points of cluster " + cluster);
+            }
+
+            // Output cluster information including centroid and points
+            String header = "Cluster " + cluster + ":\n" + "Centroid: " + centroid + "\n" + "Points:";
+            if (listing) {
+                line.set(header);
+                context.write(NullWritable.get(), line);
+            }
+
+            // One file per cluster, streamed point by point, the driver moves them to task_2_1_classes.
+            // Further parts of a split cluster are listed in cluster_<id>.<part>.txt
+            String outputFileName = "cluster_" + cluster + (shard > 0 ? "." + shard : "") + ".txt";
+            try (BufferedWriter clusterWriter = new BufferedWriter(
+                    new OutputStreamWriter(fs.create(new Path(workPath, outputFileName), true), StandardCharsets.UTF_8))) {
+                clusterWriter.write(header);
+                clusterWriter.write("\n");
+                for (PartialCentroidWritable value : values) {
+                    point.coords = value.getSums();
+                    String text = point.toString();
+                    clusterWriter.write(text);
+                    clusterWriter.write("\n");
+                    if (listing) {
+                        line.set(text);
+                        context.write(NullWritable.get(), line);
+                    }
+                }
+            }
+            if (listing) {
+                // Blank line between clusters, as when a whole cluster was one record
+                line.set("");
+                context.write(NullWritable.get(), line);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            bw.close(); // Close the buffered writer to release resources
+            countEmptyClusters(context, seen, slots);
+            context.getCounter(KMeansCounter.REDUCE_MILLIS).increment(millisSince(reduceStart));
+        }
+    }
+
+    // Trained centroids for scoring new points outside of a job, e.g. to label incoming events. The model
+    // is immutable and assign() allocates nothing, so one instance can serve any number of threads.
+    // Cluster IDs are the line numbers of centroids.txt, which has a line for every cluster (an empty one
+    // keeps its last centroid), so they are the IDs of the final pass and of task_2_1_classes.
+    public static final class ScoringModel {
+        private final double[] centroids;
+        private final int count;
+        private final int dimension;
+
+        public ScoringModel(List<Point> centroids) {
+            if (centroids.isEmpty()) {
+                throw new IllegalArgumentException("No centroids to score against");
+            }
+            this.dimension = centroids.get(0).dimension();
+            for (Point centroid : centroids) {
+                if (centroid.dimension() != dimension) {
+                    throw new IllegalArgumentException("Centroids have different dimensions");
+                }
+            }
+            this.centroids = flatten(centroids);
+            this.count = centroids.size();
+        }
+
+        // A centroids.txt written by KMeans, or a directory of part files with one centroid per line
+        public static ScoringModel load(Configuration conf, Path path) throws IOException {
+            return new ScoringModel(readPoints(path.getFileSystem(conf), path));
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public int dimension() {
+            return dimension;
+        }
+
+        // Cluster of one point
+        public int assign(double[] point) {
+            checkDimension(point.length);
+            return closestCentroid(point, 0, dimension, centroids, null);
+        }
+
+        // Cluster of the point stored at offset of a flat array of points
+        public int assign(double[] points, int offset) {
+            if (offset < 0 || offset + dimension > points.length) {
+                throw new IndexOutOfBoundsException("No point of dimension " + dimension + " at " + offset);
+            }
+            return closestCentroid(points, offset, dimension, centroids, null);
+        }
+
+        // Clusters of clustersOut.length points stored back to back in points
+        public void assign(double[] points, int[] clustersOut) {
+            if (points.length != clustersOut.length * dimension) {
+                throw new IllegalArgumentException(points.length + " values are not " + clustersOut.length
+                        + " points of dimension " + dimension);
+            }
+            for (int i = 0, offset = 0; i < clustersOut.length; i++, offset += dimension) {
+                clustersOut[i] = closestCentroid(points, offset, dimension, centroids, null);
+            }
+        }
+
+        private void checkDimension(int pointDimension) {
+            if (pointDimension != dimension) {
+                throw new IllegalArgumentException("Point of dimension " + pointDimension
+                        + " for a model of dimension " + dimension);
+            }
+        }
+    }
+
+    // Map-only job behind -D score_model=...: point ID -> cluster ID for every point of the input under the
+    // given model, with the IDs of -D assignments=true. No centroid is updated.
+    public static class ScoringMapper extends Mapper<LongWritable, Writable, LongWritable, IntWritable> {
+        private ScoringModel model;
+        private final PointWritable point = new PointWritable();
+        private final LongWritable pointId = new LongWritable();
+        private final IntWritable assigned = new IntWritable();
+        private long recordLength;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            model = ScoringModel.load(conf, new Path(conf.get("score_model")));
+            // Binary records are numbered, text lines keep their byte offset as ID
+            recordLength = "binary".equals(conf.get("input_format", "text")) ? Double.BYTES * model.dimension() : 1;
+        }
+
+        @Override
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (!readPoint(point, value, model.dimension(), context)) {
+                return;
+            }
+            pointId.set(key.get() / recordLength);
+            assigned.set(model.assign(point.get().coords));
+            context.write(pointId, assigned);
+        }
+    }
+
+    // In-memory engine behind -D engine=local for data that fits on one node: all points live in one flat
+    // array and every Lloyd step runs as fixed chunks on a fork-join pool instead of as a MapReduce job
+    public static class LocalKMeans {
+        private final double[] points;
+        private final int dimension;
+        private final int count;
+        private final int chunkSize;
+        private final int[] assignments;
+        private final ForkJoinPool pool;
+        private List<Partial> lastPartials = Collections.emptyList();
+
+        public LocalKMeans(double[] points, int dimension, int threads) {
+            this.points = points;
+            this.dimension = dimension;
+            count = points.length / dimension;
+            // A few chunks per thread keeps every core busy when some chunks finish early
+            chunkSize = Math.max(1, (count + threads * 4 - 1) / (threads * 4));
+            assignments = new int[count];
+            pool = new ForkJoinPool(threads);
+        }
+
+        // Sums, counts and SSE of the points of one chunk, plus its points farthest from their centroids
+        private static class Partial {
+            final double[] sums;
+            final long[] counts;
+            final FarthestPoints farthest;
+            double sse;
+
+            Partial(int k, int dimension) {
+                sums = new double[k * dimension];
+                counts = new long[k];
+                farthest = new FarthestPoints(k);
+            }
+        }
+
+        // Assigns every point to its closest centroid and returns the means of the new clusters, a cluster
+        // left without points keeps its centroid. Cluster sizes go to countsOut and the total SSE to sseOut.
+        public double[] iterate(double[] centroids, long[] countsOut, double[] sseOut) {
+            int k = centroids.length / dimension;
+            int chunks = (count + chunkSize - 1) / chunkSize;
+            List<Partial> partials = pool.submit(() -> IntStream.range(0, chunks).parallel()
+                    .mapToObj(c -> assign(centroids, k, c * chunkSize, Math.min(count, (c + 1) * chunkSize)))
+                    .collect(Collectors.toList())).join();
+            lastPartials = partials;
+
+            // Chunks are merged in a fixed order, the result does not depend on thread scheduling
+            double[] updated = centroids.clone();
+            double[] slice = new double[dimension];
+            KahanVector sums = new KahanVector();
+            KahanSum sse = new KahanSum();
+            for (int j = 0; j < k; j++) {
+                sums.reset();
+                countsOut[j] = 0;
+                for (Partial partial : partials) {
+                    if (partial.counts[j] > 0) {
+                        System.arraycopy(partial.sums, j * dimension, slice, 0, dimension);
+                        sums.add(slice);
+                        countsOut[j] += partial.counts[j];
+                    }
+                }
+                if (countsOut[j] > 0) {
+                    System.arraycopy(sums.value(countsOut[j]), 0, updated, j * dimension, dimension);
+                }
+            }
+            for (Partial partial : partials) {
+                sse.add(partial.sse);
+            }
+            sseOut[0] = sse.value();
+            return updated;
+        }
+
+        private Partial assign(double[] centroids, int k, int from, int to) {
+            Partial partial = new Partial(k, dimension);
+            double[] distance = new double[1];
+
+            for (int i = from, offset = from * dimension; i < to; i++, offset += dimension) {
+                int cluster = closestCentroid(points, offset, dimension, centroids, distance);
+                assignments[i] = cluster;
+                partial.counts[cluster]++;
+                partial.sse += distance[0];
+                partial.farthest.offer(distance[0], points, offset, dimension);
+                for (int d = 0, base = cluster * dimension; d < dimension; d++) {
+                    partial.sums[base + d] += points[offset + d];
+                }
+            }
+            return partial;
+        }
+
+        // Re-seeding candidates of the last iterate call, farthest from their centroid first
+        public List<double[]> farthestPoints() {
+            List<double[]> candidates = new ArrayList<>();
+            for (Partial partial : lastPartials) {
+                for (int i = 0; i < partial.farthest.size(); i++) {
+                    double[] candidate = new double[dimension + 1];
+                    candidate[0] = partial.farthest.distanceAt(i);
+                    System.arraycopy(partial.farthest.pointAt(i), 0, candidate, 1, dimension);
+                    candidates.add(candidate);
+                }
+            }
+            return sortCandidates(candidates);
+        }
+
+        // Same layout as FinalKMeansReducer: one "Cluster i" block per non-empty cluster in
+        // task_2_1_classes/cluster_i.txt and, with listing, in final_output, using the assignments of the
+        // last iterate call
+        public void writeClusters(FileSystem fs, String outputDir, double[] centroids, long[] counts, boolean listing)
+                throws IOException {
+            // Counting sort of the point indices by cluster, points keep their input order
+            int k = counts.length;
+            int[] start = new int[k + 1];
+            for (int j = 0; j < k; j++) {
+                start[j + 1] = start[j] + (int) counts[j];
+            }
+            int[] next = Arrays.copyOf(start, k);
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[next[assignments[i]]++] = i;
+            }
+
+            Point point = new Point(new double[dimension]);
+            Path partPath = new Path(outputDir + "/final_output/part-r-00000");
+            fs.delete(new Path(outputDir + "/task_2_1_classes"), true);
+            try (BufferedWriter part = listing
+                    ? new BufferedWriter(new OutputStreamWriter(fs.create(partPath, true), StandardCharsets.UTF_8))
+                    : null) {
+                for (int j = 0; j < k; j++) {
+                    if (counts[j] == 0) {
+                        continue;
+                    }
+                    Point centroid = new Point(Arrays.copyOfRange(centroids, j * dimension, (j + 1) * dimension));
+                    String header = "Cluster " + j + ":\nCentroid: " + centroid + "\nPoints:\n";
+                    Path clusterPath = new Path(outputDir + "/task_2_1_classes/cluster_" + j + ".txt");
+
+                    try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(clusterPath, true), StandardCharsets.UTF_8))) {
+                        if (part != null) {
+                            part.write(header);
+                        }
+                        bw.write(header);
+                        for (int o = start[j]; o < start[j + 1]; o++) {
+                            System.arraycopy(points, order[o] * dimension, point.coords, 0, dimension);
+                            String line = point + "\n";
+                            if (part != null) {
+                                part.write(line);
+                            }
+                            bw.write(line);
+                        }
+                    }
+                    if (part != null) {
+                        // TextOutputFormat ends every record with its own newline
+                        part.write("\n");
+                    }
+                }
+            }
+        }
+
+        public void close() {
+            pool.shutdown();
+        }
+    }
+
+    // Base of the k-means|| seeding passes: loads the current candidate centers from seed_candidates
+    public abstract static class SeedingMapper<KEYOUT, VALUEOUT> extends Mapper<LongWritable, Writable, KEYOUT, VALUEOUT> {
+        protected double[] candidates;
+        protected int candidateCount;
+        protected Random random;
+        protected final PointWritable point = new PointWritable();
+        private final double[] distance = new double[1];
+        private int dimension;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            List<Point> points = readPoints(FileSystem.get(conf), new Path(conf.get("seed_candidates")));
+            candidates = flatten(points);
+            candidateCount = points.size();
+            dimension = points.get(0).dimension();
+            // Different but reproducible random stream per task
+            random = new Random(conf.getLong("seed_salt", 0) * 31 + context.getTaskAttemptID().getTaskID().getId());
+        }
+
+        // Decodes the record into point, false for records counted as parse failures
+        protected boolean nextPoint(Writable value, Context context) {
+            return readPoint(point, value, dimension, context);
+        }
+
+        // Squared distance from the current point to its nearest candidate
+        protected double nearestSquaredDistance() {
+            closestCentroid(point.get().coords, candidates, distance);
+            return distance[0];
+        }
+    }
+
+    // Keeps the point with the smallest random key, the single reducer then picks a uniform random point
+    public static class RandomPointMapper extends Mapper<LongWritable, Writable, DoubleWritable, PointWritable> {
+        private Random random;
+        private double bestKey = Double.MAX_VALUE;
+        private final PointWritable best = new PointWritable();
+        private final PointWritable point = new PointWritable();
+        private int dimension;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            random = new Random(conf.getLong("seed_salt", 0) * 31 + context.getTaskAttemptID().getTaskID().getId());
+            // No candidates yet to take the dimension from, the driver sets it from the input
+            dimension = conf.getInt("dimension", 2);
+        }
+
+        @Override
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (!readPoint(point, value, dimension, context)) {
+                return;
+            }
+            double randomKey = random.nextDouble();
+            if (randomKey < bestKey) {
+                bestKey = randomKey;
+                best.set(point.get().coords);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (bestKey < Double.MAX_VALUE) {
+                context.write(new DoubleWritable(bestKey), best);
+            }
+        }
+    }
+
+    public static class RandomPointReducer extends Reducer<DoubleWritable, PointWritable, NullWritable, PointWritable> {
+        private boolean written;
+
+        @Override
+        protected void reduce(DoubleWritable key, Iterable<PointWritable> values, Context context)
+                throws IOException, InterruptedException {
+            // Keys arrive sorted, so the first one is the global minimum
+            if (!written) {
+                context.write(NullWritable.get(), values.iterator().next());
+                written = true;
+            }
+        }
+    }
+
+    // Cost psi = sum of squared distances to the nearest candidate, one partial sum per mapper
+    public static class SeedCostMapper extends SeedingMapper<NullWritable, DoubleWritable> {
+        private final KahanSum cost = new KahanSum();
+
+        @Override
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (nextPoint(value, context)) {
+                cost.add(nearestSquaredDistance());
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            context.write(NullWritable.get(), new DoubleWritable(cost.value()));
+        }
+    }
+
+    public static class DoubleSumReducer extends Reducer<NullWritable, DoubleWritable, NullWritable, DoubleWritable> {
+        @Override
+        protected void reduce(NullWritable key, Iterable<DoubleWritable> values, Context context)
+                throws IOException, InterruptedException {
+            KahanSum sum = new KahanSum();
+            for (DoubleWritable value : values) {
+                sum.add(value.get());
+            }
+            context.write(NullWritable.get(), new DoubleWritable(sum.value()));
+        }
+    }
+
+    // Map-only k-means|| round: keep each point with probability oversampling * d^2 / psi
+    public static class SeedSampleMapper extends SeedingMapper<NullWritable, PointWritable> {
+        private double cost;
+        private double oversampling;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            cost = context.getConfiguration().getDouble("seed_cost", 1.0);
+            oversampling = context.getConfiguration().getDouble("seed_oversampling", 2.0);
+        }
+
+        @Override
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (nextPoint(value, context) && random.nextDouble() * cost < oversampling * nearestSquaredDistance()) {
+                context.write(NullWritable.get(), point);
+            }
+        }
+    }
+
+    // Number of points closest to each candidate, used as weights when reducing the candidates to k
+    public static class SeedWeightMapper extends SeedingMapper<IntWritable, LongWritable> {
+        private long[] weights;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            weights = new long[candidateCount];
+        }
+
+        @Override
+        protected void map(LongWritable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (nextPoint(value, context)) {
+                weights[closestCentroid(point.get().coords, candidates, null)]++;
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] > 0) {
+                    context.write(new IntWritable(i), new LongWritable(weights[i]));
+                }
+            }
+        }
+    }
+
+    // d-dimensional point, coordinates kept in a flat primitive array
+    public static class Point {
+        private double[] coords;
+
+        public Point(double... coords) {
+            this.coords = coords;
+        }
+
+        public int dimension() {
+            return coords.length;
+        }
+
+        // Init the point from data
+        public static Point fromString(String str) {
+            double[] coords = new double[countValues(str)];
+            parse(str, coords);
+            return new Point(coords);
+        }
+
+        // Number of whitespace separated values in a line
+        static int countValues(String str) {
+            int count = 0;
+            boolean inValue = false;
+            for (int i = 0; i < str.length(); i++) {
+                boolean separator = Character.isWhitespace(str.charAt(i));
+                if (!separator && !inValue) {
+                    count++;
+                }
+                inValue = !separator;
+            }
+            return count;
+        }
+
+        // Parse the whitespace separated values of a line into target
+        static void parse(String str, double[] target) {
+            int n = 0;
+            int start = -1;
+            for (int i = 0; i <= str.length() && n < target.length; i++) {
+                boolean separator = i == str.length() || Character.isWhitespace(str.charAt(i));
+                if (separator && start >= 0) {
+                    target[n++] = Double.parseDouble(str.substring(start, i));
+                    start = -1;
+                } else if (!separator && start < 0) {
+                    start = i;
+                }
+            }
+        }
+
+        public static double euclideanDistance(Point p1, Point p2) {
+            return Math.sqrt(squaredDistance(p1, p2));
+        }
+
+        public static double squaredDistance(Point p1, Point p2) {
+            return squaredDistance(p1.coords, 0, p2.coords, 0, p1.coords.length);
+        }
+
+        // Squared distance between a[aOffset..] and b[bOffset..]. Four independent accumulators break the
+        // dependency chain of a single running sum so the JIT can pipeline and unroll the loop.
+        public static double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int dimension) {
+            double s0 = 0;
+            double s1 = 0;
+            double s2 = 0;
+            double s3 = 0;
+            int i = 0;
+
+            for (; i + 3 < dimension; i += 4) {
+                double d0 = a[aOffset + i] - b[bOffset + i];
+                double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+                double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+                double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            for (; i < dimension; i++) {
+                double d = a[aOffset + i] - b[bOffset + i];
+                s0 += d * d;
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        // Compute the centroid using arithmetic mean
+        public static Point computeCentroid(List<Point> points) {
+            double[] sums = new double[points.get(0).coords.length];
+
+            for (Point point : points) {
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += point.coords[i];
+                }
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] /= points.size();
+            }
+
+            return new Point(sums);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < coords.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(coords[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Optional settings come as -D key=value before the positional arguments,
+        // e.g. -D input_format=binary for the flat binary file written by CSVReader
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (conf.get("score_model") != null) {
+            // Label the points of an input with an already trained model
+            if (args.length < 2) {
+                System.err.println("Usage: KMeans -D score_model=<centroids.txt> [-D key=value ...] <inputFile> <outputDir>");
+                System.exit(1);
+            }
+            System.exit(runScoring(conf, new Path(args[0]), new Path(args[1])) ? 0 : 1);
+        }
+        if (args.length < 4) {
+            System.err.println("Usage: KMeans [-D key=value ...] <inputFile> <outputDir> k iterations");
+            System.exit(1);
+        }
+        boolean binaryInput = "binary".equals(conf.get("input_format", "text"));
+        conf.set("input", args[0]);
+        conf.set("output", args[1]);
+        conf.set("k", args[2]); // Set k value in configuration
+        conf.set("iteration", args[3]); // Set itegration value in configuration
+        if (binaryInput && conf.get("dimension") == null) {
+            // Binary records carry no separators, the dimension comes from the sidecar CSVReader writes
+            conf.setInt("dimension", readDimension(new Path(args[0] + ".dim"), FileSystem.get(conf)));
+        } else if (conf.get("dimension") == null) {
+            // Text input: the first line that parses, the seeding jobs skip points of any other dimension
+            conf.setInt("dimension", readTextDimension(new Path(args[0]), FileSystem.get(conf)));
+        }
+
+        // Initialize centroids with -D init=kmeans++ (default) or random on the points read into the driver,
+        // or init=kmeans-parallel (k-means||) as MapReduce passes for inputs too large to load.
+        // -D engine=local keeps the points in memory anyway, there k-means|| falls back to kmeans++.
+        int k = Integer.parseInt(conf.get("k"));
+        String init = conf.get("init", "kmeans++");
+        boolean localEngine = "local".equals(conf.get("engine", "mapreduce"));
+        Random random = conf.get("seed") == null ? new Random() : new Random(conf.getLong("seed", 0));
+        List<Point> centroids;
+        List<Point> dataPoints = null;
+
+        // -D sweep_k=2-20 (or a list such as 2,4,8) with -D sweep_restarts=R fits every k R times from
+        // different seeds. All models share the iteration jobs: their centroids are stored one model after
+        // the other, cluster j of a model is global cluster (first centroid of the model + j).
+        List<Integer> sweepModels = sweepModels(conf);
+        boolean sweep = !sweepModels.isEmpty();
+        if (sweep) {
+            if ("kmeans-parallel".equals(init)) {
+                // Sweeps seed every model in the driver, so the points have to fit in its memory
+                System.err.println("-D sweep_k needs -D init=kmeans++ or random, all points are read into the driver");
+                System.exit(1);
+            }
+            if (localEngine || "hamerly".equals(conf.get("assignment"))) {
+                System.out.println("engine=local and assignment=hamerly are ignored for sweeps");
+                localEngine = false;
+                conf.set("assignment", "lloyd");
+            }
+            dataPoints = readDataPoints(args[0], binaryInput, conf.getInt("dimension", 2));
+            centroids = new ArrayList<>();
+            for (int modelK : sweepModels) {
+                centroids.addAll("random".equals(init)
+                        ? initializeCentroids(modelK, dataPoints, random)
+                        : initializeCentroidsPlusPlus(modelK, dataPoints, null, random));
+            }
+            dataPoints = null;
+            conf.set("sweep_models", sweepModels.stream().map(String::valueOf).collect(Collectors.joining(",")));
+            // Reducers count empty clusters up to k
+            conf.setInt("k", centroids.size());
+        } else if ("kmeans-parallel".equals(init) && !localEngine) {
+            centroids = initializeCentroidsParallel(conf, k, new Path(args[0]), binaryInput, random);
+        } else {
+            // Read data points from input file
+            dataPoints = readDataPoints(args[0], binaryInput, conf.getInt("dimension", 2));
+            if ("random".equals(init)) {
+                centroids = initializeCentroids(k, dataPoints, random);
+            } else {
+                centroids = initializeCentroidsPlusPlus(k, dataPoints, null, random);
+            }
+        }
+
+        // Write centroid into file
+        FileSystem fs = FileSystem.get(conf);
+        Path centroidsPath = new Path(conf.get("output") + "/task_2_1_cluster/centroids.txt");
+        writeCentroids(fs, centroidsPath, centroids);
+
+        if (localEngine) {
+            // The in-memory engine always runs full Lloyd passes over all points
+            if ("minibatch".equals(conf.get("algorithm")) || "hamerly".equals(conf.get("assignment"))) {
+                System.out.println("algorithm=minibatch and assignment=hamerly are ignored for engine=local");
+            }
+            runLocal(conf, fs, dataPoints, centroids);
+            System.exit(0);
+        }
+
+        // -D algorithm=minibatch: every step sees a random sample of splits and records and moves each
+        // centroid towards its batch mean with a learning rate of 1 / (points it has absorbed so far)
+        boolean miniBatch = "minibatch".equals(conf.get("algorithm", "lloyd"));
+        long[] absorbed = new long[centroids.size()];
+        if (miniBatch && "hamerly".equals(conf.get("assignment"))) {
+            // Bounds need every point on every pass
+            System.out.println("assignment=hamerly is ignored for algorithm=minibatch");
+            conf.set("assignment", "lloyd");
+        }
+        boolean hamerly = "hamerly".equals(conf.get("assignment"));
+
+        // One fresh job per Lloyd iteration, stopping early once no centroid moves more than epsilon.
+        // A sweep has no final pass, all its iterations are jobs like these.
+        int maxIterations = Integer.parseInt(conf.get("iteration")) - (sweep ? 0 : 1);
+        Path lastIterationDir = null;
+        double epsilon = conf.getDouble("epsilon", 0.0);
+        Path statsPath = new Path(conf.get("output") + "/task_2_1_cluster/iteration_stats.txt");
+        Path summaryPath = new Path(conf.get("output") + "/task_2_1_cluster/" + SUMMARY_FILE);
+        StringBuilder stats = new StringBuilder("iteration\ttime_ms\tmax_shift\tsse\n");
+        StringBuilder summary = new StringBuilder();
+        // Cluster sizes of the latest iteration, they decide how the final pass splits large clusters
+        long[] clusterCounts = null;
+
+        for (int i = 1; i <= maxIterations; i++) {
+            Path iterationDir = new Path(args[1] + "/" + "_iter_" + i);
+            fs.delete(iterationDir, true);
+
+            long start = System.nanoTime();
+            Job job = createIterationJob(conf, new Path(args[0]), iterationDir, binaryInput);
+            if (miniBatch) {
+                job.setInputFormatClass(binaryInput ? SampledFixedLengthInputFormat.class : SampledTextInputFormat.class);
+                job.getConfiguration().setLong("seed_salt", random.nextLong());
+            }
+            if (hamerly && lastIterationDir != null) {
+                job.getConfiguration().set("bounds_dir", lastIterationDir.toString());
+            }
+            if (!job.waitForCompletion(true)) {
+                System.err.println("KMeans iteration " + i + " failed");
+                System.exit(1);
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+            // Update centroids for the next iteration
+            List<Point> updated = miniBatch
+                    ? updateCentroidsMiniBatch(iterationDir, fs, centroids, absorbed)
+                    : updateCentroids(iterationDir, fs, centroids);
+            clusterCounts = readClusterCounts(iterationDir, fs, centroids.size());
+            // The bounds of an iteration are only read by the next one
+            if (lastIterationDir != null) {
+                deleteBounds(fs, lastIterationDir);
+            }
+            lastIterationDir = iterationDir;
+            if (reseedEnabled(conf) && !sweep) {
+                // A mini-batch may simply have missed a cluster, only those that never got a point are moved
+                reseedEmptyClusters(i, updated, miniBatch ? absorbed : clusterCounts, readFarthest(iterationDir, fs));
+            }
+            double shift = maxShift(centroids, updated);
+            centroids = updated;
+            writeCentroids(fs, centroidsPath, centroids);
+
+            double sse = readSse(iterationDir, fs);
+            stats.append(i).append('\t').append(elapsedMs).append('\t').append(shift).append('\t')
+                    .append(sse).append('\n');
+            writeStats(fs, statsPath, stats);
+            Counters counters = job.getCounters();
+            summary.append(iterationSummary(i, elapsedMs, shift, sse, clusterCounts,
+                    counters.findCounter(KMeansCounter.DISTANCE_EVALUATIONS).getValue(), counters));
+            writeStats(fs, summaryPath, summary);
+
+            if (shift <= epsilon) {
+                System.out.println("KMeans converged after " + i + " iterations (max shift " + shift + ")");
+                break;
+            }
+        }
+
+        if (lastIterationDir != null) {
+            deleteBounds(fs, lastIterationDir);
+        }
+
+        if (sweep) {
+            if (lastIterationDir != null) {
+                writeSweepScores(fs, conf.get("output"), lastIterationDir, sweepModels, centroids, clusterCounts);
+            }
+            System.exit(0);
+        }
+
+        // The final pass ships whole points, so it gets its own mapper and shuffle types
+        Job finalJob = Job.getInstance(conf, "KMeans final");
+        finalJob.setJarByClass(KMeans.class);
+        finalJob.setMapperClass(FinalKMeansMapper.class);
+        finalJob.setReducerClass(FinalKMeansReducer.class);
+        finalJob.setPartitionerClass(FinalKMeansPartitioner.class);
+        finalJob.setMapOutputKeyClass(IntWritable.class);
+        finalJob.setMapOutputValueClass(PartialCentroidWritable.class);
+        finalJob.setOutputKeyClass(NullWritable.class);
+        finalJob.setOutputValueClass(Text.class);
+        setPointInputFormat(finalJob, binaryInput);
+        // part-r-* only holds the -D final_listing=true listing, no empty files without it
+        LazyOutputFormat.setOutputFormatClass(finalJob, TextOutputFormat.class);
+        MultipleOutputs.addNamedOutput(finalJob, ASSIGNMENTS_OUTPUT, SequenceFileOutputFormat.class,
+                LongWritable.class, IntWritable.class);
+        CentroidTable.addToCache(finalJob, conf);
+        if (clusterCounts != null && finalJob.getNumReduceTasks() > 1) {
+            // With -D mapreduce.job.reduces=N, clusters too large for one reducer are split over several
+            ClusterSlots.configure(finalJob.getConfiguration(), clusterCounts, finalJob.getNumReduceTasks());
+        }
+        FileInputFormat.addInputPath(finalJob, new Path(args[0]));
+        // Set output path for the final iteration
+        fs.delete(new Path(args[1] + "/final_output"), true);
+        TextOutputFormat.setOutputPath(finalJob, new Path(args[1] + "/final_output"));
+        boolean succeeded = finalJob.waitForCompletion(true);
+        if (succeeded) {
+            Path finalOutput = new Path(args[1] + "/final_output");
+            writeCentroids(fs, centroidsPath, readFinalCentroids(fs, finalOutput, readPoints(fs, centroidsPath)));
+            moveClusterFiles(fs, finalOutput, new Path(conf.get("output") + "/task_2_1_classes"));
+        }
+        System.exit(succeeded ? 0 : 1);
+    }
+
+    // Map-only job writing point ID -> cluster ID of -D score_model for every point of input
+    private static boolean runScoring(Configuration conf, Path input, Path output) throws Exception {
+        ScoringModel model = ScoringModel.load(conf, new Path(conf.get("score_model")));
+        boolean binaryInput = "binary".equals(conf.get("input_format", "text"));
+        conf.setInt("dimension", model.dimension());
+
+        Job job = Job.getInstance(conf, "KMeans scoring");
+        job.setJarByClass(KMeans.class);
+        job.setMapperClass(ScoringMapper.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(IntWritable.class);
+        setPointInputFormat(job, binaryInput);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        SequenceFileOutputFormat.setOutputPath(job, output);
+        System.out.println("Scoring " + input + " against " + model.count() + " centroids of dimension "
+                + model.dimension());
+        return job.waitForCompletion(true);
+    }
+
+    // Same iterations, stats and output files as the MapReduce path, computed in this JVM on
+    // -D local_threads threads (all cores by default)
+    private static void runLocal(Configuration conf, FileSystem fs, List<Point> dataPoints, List<Point> initial)
+            throws IOException {
+        int dimension = initial.get(0).dimension();
+        int threads = conf.getInt("local_threads", Runtime.getRuntime().availableProcessors());
+        LocalKMeans engine = new LocalKMeans(flatten(dataPoints), dimension, threads);
+        dataPoints.clear();
+
+        String output = conf.get("output");
+        Path centroidsPath = new Path(output + "/task_2_1_cluster/centroids.txt");
+        Path statsPath = new Path(output + "/task_2_1_cluster/iteration_stats.txt");
+        Path summaryPath = new Path(output + "/task_2_1_cluster/" + SUMMARY_FILE);
+        StringBuilder stats = new StringBuilder("iteration\ttime_ms\tmax_shift\tsse\n");
+        StringBuilder summary = new StringBuilder();
+        int maxIterations = Integer.parseInt(conf.get("iteration")) - 1;
+        double epsilon = conf.getDouble("epsilon", 0.0);
+        double[] centroids = flatten(initial);
+        long[] counts = new long[initial.size()];
+        double[] sse = new double[1];
+
+        try {
+            for (int i = 1; i <= maxIterations; i++) {
+                long start = System.nanoTime();
+                double[] updated = engine.iterate(centroids, counts, sse);
+                if (reseedEnabled(conf)) {
+                    List<Point> moved = unflatten(updated, dimension);
+                    if (reseedEmptyClusters(i, moved, counts, engine.farthestPoints()) > 0) {
+                        updated = flatten(moved);
+                    }
+                }
+                long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+                double shift = 0;
+                for (int offset = 0; offset < centroids.length; offset += dimension) {
+                    shift = Math.max(shift,
+                            Math.sqrt(Point.squaredDistance(centroids, offset, updated, offset, dimension)));
+                }
+                centroids = updated;
+                writeCentroids(fs, centroidsPath, unflatten(centroids, dimension));
+
+                stats.append(i).append('\t').append(elapsedMs).append('\t').append(shift).append('\t')
+                        .append(sse[0]).append('\n');
+                writeStats(fs, statsPath, stats);
+                // Every point is compared with every centroid, there are no task phases to time
+                summary.append(iterationSummary(i, elapsedMs, shift, sse[0], counts,
+                        (long) engine.count * counts.length, null));
+                writeStats(fs, summaryPath, summary);
+
+                if (shift <= epsilon) {
+                    System.out.println("KMeans converged after " + i + " iterations (max shift " + shift + ")");
+                    break;
+                }
+            }
+
+            // Final pass: like FinalKMeansReducer, centroids.txt ends up with the means of the final clusters,
+            // an empty cluster keeps its centroid so line i stays cluster i
+            centroids = engine.iterate(centroids, counts, sse);
+            writeCentroids(fs, centroidsPath, unflatten(centroids, dimension));
+            fs.delete(new Path(output + "/final_output"), true);
+            engine.writeClusters(fs, output, centroids, counts, conf.getBoolean("final_listing", false));
+        } finally {
+            engine.close();
+        }
+    }
+
+    // Splits a flat centroid array back into points
+    private static List<Point> unflatten(double[] flat, int dimension) {
+        List<Point> points = new ArrayList<>();
+        for (int offset = 0; offset < flat.length; offset += dimension) {
+            points.add(new Point(Arrays.copyOfRange(flat, offset, offset + dimension)));
+        }
+        return points;
+    }
+
+    // One JSON object per line for iteration_summary.jsonl. The phase timers and parse failures come from
+    // the job counters and are left out when counters is null (-D engine=local).
+    private static String iterationSummary(int iteration, long elapsedMs, double shift, double sse, long[] clusterCounts,
+            long distanceEvaluations, Counters counters) {
+        int empty = 0;
+        StringBuilder json = new StringBuilder("{\"iteration\":").append(iteration)
+                .append(",\"time_ms\":").append(elapsedMs)
+                .append(",\"max_shift\":").append(jsonNumber(shift))
+                .append(",\"sse\":").append(jsonNumber(sse))
+                .append(",\"points_per_cluster\":[");
+        for (int c = 0; c < clusterCounts.length; c++) {
+            json.append(c > 0 ? "," : "").append(clusterCounts[c]);
+            if (clusterCounts[c] == 0) {
+                empty++;
+            }
+        }
+        json.append("],\"empty_clusters\":").append(empty)
+                .append(",\"distance_evaluations\":").append(distanceEvaluations);
+        if (counters != null) {
+            json.append(",\"parse_failures\":").append(counters.findCounter(KMeansCounter.PARSE_FAILURES).getValue())
+                    .append(",\"setup_ms\":").append(counters.findCounter(KMeansCounter.SETUP_MILLIS).getValue())
+                    .append(",\"map_ms\":").append(counters.findCounter(KMeansCounter.MAP_MILLIS).getValue())
+                    .append(",\"reduce_ms\":").append(counters.findCounter(KMeansCounter.REDUCE_MILLIS).getValue());
+        }
+        return json.append("}\n").toString();
+    }
+
+    // JSON has no NaN or infinity
+    private static String jsonNumber(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    // k of every model of a sweep, each k of -D sweep_k repeated -D sweep_restarts times; empty without sweep_k
+    private static List<Integer> sweepModels(Configuration conf) {
+        List<Integer> models = new ArrayList<>();
+        String sweepK = conf.get("sweep_k");
+        if (sweepK == null) {
+            return models;
+        }
+        int restarts = conf.getInt("sweep_restarts", 1);
+        for (String part : sweepK.split(",")) {
+            String[] range = part.trim().split("-");
+            int from = Integer.parseInt(range[0].trim());
+            int to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+            for (int modelK = from; modelK <= to; modelK++) {
+                for (int r = 0; r < restarts; r++) {
+                    models.add(modelK);
+                }
+            }
+        }
+        return models;
+    }
+
+    // sweep_scores.txt: SSE, mean simplified silhouette and empty clusters of every model from the last
+    // iteration, plus the centroids of each model in sweep/k<k>_r<restart>.txt. The silhouette of a point is
+    // (b - a) / max(a, b) with a and b its distances to the closest and second closest centroid.
+    private static void writeSweepScores(FileSystem fs, String output, Path iterationDir, List<Integer> models,
+            List<Point> centroids, long[] clusterCounts) throws IOException {
+        double[] clusterSse = new double[centroids.size()];
+        for (FileStatus status : fs.globStatus(new Path(iterationDir, SSE_OUTPUT + "-r-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    clusterSse[Integer.parseInt(parts[0])] = Double.parseDouble(parts[1]);
+                }
+            }
+        }
+        double[] silhouette = new double[models.size()];
+        for (FileStatus status : fs.globStatus(new Path(iterationDir, SILHOUETTE_OUTPUT + "-r-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    long points = Long.parseLong(parts[2]);
+                    silhouette[Integer.parseInt(parts[0])] = points == 0 ? 0 : Double.parseDouble(parts[1]) / points;
+                }
+            }
+        }
+
+        StringBuilder scores = new StringBuilder("k\trestart\tsse\tsilhouette\tempty_clusters\n");
+        Map<Integer, Integer> restarts = new HashMap<>();
+        for (int m = 0, first = 0; m < models.size(); first += models.get(m), m++) {
+            int modelK = models.get(m);
+            int restart = restarts.merge(modelK, 1, Integer::sum) - 1;
+            KahanSum sse = new KahanSum();
+            int empty = 0;
+            for (int c = first; c < first + modelK; c++) {
+                sse.add(clusterSse[c]);
+                empty += clusterCounts[c] == 0 ? 1 : 0;
+            }
+            scores.append(modelK).append('\t').append(restart).append('\t').append(sse.value()).append('\t')
+                    .append(silhouette[m]).append('\t').append(empty).append('\n');
+            Path modelPath = new Path(output + "/task_2_1_cluster/sweep/k" + modelK + "_r" + restart + ".txt");
+            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(modelPath, true), StandardCharsets.UTF_8))) {
+                for (Point centroid : centroids.subList(first, first + modelK)) {
+                    bw.write(centroid.toString() + "\n");
+                }
+            }
+        }
+        writeStats(fs, new Path(output + "/task_2_1_cluster/sweep_scores.txt"), scores);
+        System.out.print(scores);
+    }
+
+    // Empty clusters are moved to the points farthest from their centroids unless -D empty_clusters=keep
+    private static boolean reseedEnabled(Configuration conf) {
+        return !"keep".equals(conf.get("empty_clusters", "reseed"));
+    }
+
+    // Moves every cluster with a zero count onto the next candidate ("squared distance, coordinates",
+    // farthest first) that is not a centroid already. Returns the number of clusters moved.
+    private static int reseedEmptyClusters(int iteration, List<Point> centroids, long[] counts,
+            List<double[]> candidates) {
+        int moved = 0;
+        int empty = 0;
+        int next = 0;
+        for (int j = 0; j < counts.length; j++) {
+            if (counts[j] > 0) {
+                continue;
+            }
+            empty++;
+            while (next < candidates.size()) {
+                double[] candidate = candidates.get(next++);
+                Point point = new Point(Arrays.copyOfRange(candidate, 1, candidate.length));
+                boolean taken = false;
+                for (Point centroid : centroids) {
+                    taken |= Arrays.equals(centroid.coords, point.coords);
+                }
+                if (!taken) {
+                    centroids.set(j, point);
+                    moved++;
+                    break;
+                }
+            }
+        }
+        if (empty > 0) {
+            System.out.println("Iteration " + iteration + ": " + empty + " empty clusters, " + moved
+                    + " re-seeded from the farthest points");
+        }
+        return moved;
+    }
+
+    // Re-seeding candidates from the "squaredDistance<TAB>x y" lines of every mapper
+    private static List<double[]> readFarthest(Path outputDir, FileSystem fs) throws IOException {
+        List<double[]> candidates = new ArrayList<>();
+        for (FileStatus status : fs.globStatus(new Path(outputDir, FARTHEST_OUTPUT + "-m-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    double[] coords = Point.fromString(parts[1]).coords;
+                    double[] candidate = new double[coords.length + 1];
+                    candidate[0] = Double.parseDouble(parts[0]);
+                    System.arraycopy(coords, 0, candidate, 1, coords.length);
+                    candidates.add(candidate);
+                }
+            }
+        }
+        return sortCandidates(candidates);
+    }
+
+    // Farthest first; ties by coordinates so the choice does not depend on the order of the task outputs
+    private static List<double[]> sortCandidates(List<double[]> candidates) {
+        candidates.sort((a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                int order = Double.compare(b[i], a[i]);
+                if (order != 0) {
+                    return order;
+                }
+            }
+            return 0;
+        });
+        return candidates;
+    }
+
+    // Centroids of the final pass in cluster order, from the "clusterId<TAB>x y" centroids-r-* files of the
+    // reducers, which are deleted afterwards. A cluster without points has no line there and keeps its
+    // centroid from previous, so line i of centroids.txt is always cluster i.
+    private static List<Point> readFinalCentroids(FileSystem fs, Path dir, List<Point> previous) throws IOException {
+        List<Point> centroids = new ArrayList<>(previous);
+        for (FileStatus status : fs.globStatus(new Path(dir, FINAL_CENTROIDS_PREFIX + "*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    centroids.set(Integer.parseInt(parts[0]), Point.fromString(parts[1]));
+                }
+            }
+            fs.delete(status.getPath(), false);
+        }
+        return centroids;
+    }
+
+    // The final reducers leave cluster_<id>[.<part>].txt next to their output, these replace the
+    // files of an earlier run in the classes directory
+    private static void moveClusterFiles(FileSystem fs, Path finalOutput, Path classesDir) throws IOException {
+        fs.delete(classesDir, true);
+        fs.mkdirs(classesDir);
+        for (FileStatus status : fs.globStatus(new Path(finalOutput, "cluster_*.txt"))) {
+            if (!fs.rename(status.getPath(), new Path(classesDir, status.getPath().getName()))) {
+                throw new IOException("Could not move " + status.getPath() + " to " + classesDir);
+            }
+        }
+    }
+
+    // Hamerly bounds the mappers of an iteration left in its output, once the next iteration has read them
+    private static void deleteBounds(FileSystem fs, Path iterationDir) throws IOException {
+        for (FileStatus status : fs.globStatus(new Path(iterationDir, BOUNDS_PREFIX + "*"))) {
+            fs.delete(status.getPath(), false);
+        }
+    }
+
+    // Points behind each centroid, from the "clusterId<TAB>x y<TAB>count" lines of the reducers
+    private static long[] readClusterCounts(Path outputDir, FileSystem fs, int k) throws IOException {
+        long[] counts = new long[k];
+        for (FileStatus status : fs.globStatus(new Path(outputDir, "part-r-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    counts[Integer.parseInt(parts[0])] = Long.parseLong(parts[2]);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static void writeStats(FileSystem fs, Path statsPath, StringBuilder stats) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(statsPath, true), StandardCharsets.UTF_8))) {
+            bw.write(stats.toString());
+        }
+    }
+
+    private static Job createIterationJob(Configuration conf, Path input, Path output, boolean binaryInput)
+            throws IOException {
+        Job job = Job.getInstance(conf, "KMeans " + output.getName());
+        job.setJarByClass(KMeans.class);
+        job.setMapperClass(KMeansMapper.class);
+        job.setCombinerClass(KMeansCombiner.class);
+        job.setReducerClass(KMeansReducer.class);
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(PartialCentroidWritable.class);
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(Text.class);
+        setPointInputFormat(job, binaryInput);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        MultipleOutputs.addNamedOutput(job, SSE_OUTPUT, TextOutputFormat.class, IntWritable.class,
+                DoubleWritable.class);
+        MultipleOutputs.addNamedOutput(job, FARTHEST_OUTPUT, TextOutputFormat.class, DoubleWritable.class,
+                Text.class);
+        MultipleOutputs.addNamedOutput(job, SILHOUETTE_OUTPUT, TextOutputFormat.class, IntWritable.class,
+                Text.class);
+        CentroidTable.addToCache(job, conf);
+        FileInputFormat.addInputPath(job, input);
+        TextOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    // Text lines by default, fixed-length records of "dimension" raw doubles for binary input
+    private static void setPointInputFormat(Job job, boolean binaryInput) {
+        if (binaryInput) {
+            job.setInputFormatClass(FixedLengthInputFormat.class);
+            FixedLengthInputFormat.setRecordLength(job.getConfiguration(),
+                    Double.BYTES * job.getConfiguration().getInt("dimension", 2));
+        } else {
+            job.setInputFormatClass(TextInputFormat.class);
+        }
+    }
+
+    private static List<Point> loadCentroids(Configuration conf) throws IOException {
+        Path centroidsPath = new Path(conf.get("output") + "/task_2_1_cluster/centroids.txt");
+        return readPoints(FileSystem.get(conf), centroidsPath);
+    }
+
+    // Decode an input record into point. A record that does not parse, or not into a point with the
+    // dimension of the centroids (a blank line, a stray header), is counted under PARSE_FAILURES and
+    // skipped instead of failing the task.
+    private static boolean readPoint(PointWritable point, Writable value, int dimension, TaskAttemptContext context) {
+        try {
+            point.set(value);
+            if (point.get().coords.length == dimension) {
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // Counted below
+        }
+        context.getCounter(KMeansCounter.PARSE_FAILURES).increment(1);
+        return false;
+    }
+
+    // Clusters of this reducer that got no points, a cluster belongs to the reducer of its first slot. The
+    // iteration jobs have no cluster_shards, their slots are the clusters on reducer c % reducers like
+    // the default HashPartitioner sends them.
+    private static void countEmptyClusters(TaskInputOutputContext<?, ?, ?, ?> context, BitSet seen,
+            ClusterSlots slots) {
+        int k = context.getConfiguration().getInt("k", 0);
+        int reducers = context.getNumReduceTasks();
+        int partition = context.getTaskAttemptID().getTaskID().getId();
+        long empty = 0;
+        for (int c = 0; c < k; c++) {
+            if (!seen.get(c) && slots.partition(slots.firstSlot(c), reducers) == partition) {
+                empty++;
+            }
+        }
+        context.getCounter(KMeansCounter.EMPTY_CLUSTERS).increment(empty);
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    // Put the point into cluster using min euclidean distance. Centroids are stored back to back in one
+    // flat array; squared distances rank the same way, so no square root is taken. The squared distance
+    // to the chosen centroid is reported through minDistanceOut when it is not null.
+    private static int closestCentroid(double[] point, double[] centroids, double[] minDistanceOut) {
+        return closestCentroid(point, 0, point.length, centroids, minDistanceOut);
+    }
+
+    // Same for the point stored at pointOffset of a flat array of points
+    private static int closestCentroid(double[] points, int pointOffset, int dimension, double[] centroids,
+            double[] minDistanceOut) {
+        int closestCentroidIdx = 0;
+        double minDistance = Double.MAX_VALUE;
+
+        for (int i = 0, offset = 0; offset < centroids.length; i++, offset += dimension) {
+            double distance = Point.squaredDistance(points, pointOffset, centroids, offset, dimension);
+
+            if (distance < minDistance) {
+                minDistance = distance;
+                closestCentroidIdx = i;
+            }
+        }
+        if (minDistanceOut != null) {
+            minDistanceOut[0] = minDistance;
+        }
+        return closestCentroidIdx;
+    }
+
+    // Copy the coordinates of all points back to back into one array
+    private static double[] flatten(List<Point> points) {
+        if (points.isEmpty()) {
+            return new double[0];
+        }
+        int dimension = points.get(0).coords.length;
+        double[] flat = new double[points.size() * dimension];
+        for (int i = 0; i < points.size(); i++) {
+            System.arraycopy(points.get(i).coords, 0, flat, i * dimension, dimension);
+        }
+        return flat;
+    }
+
+    // centroids.txt plus the centroids.bin copy the mappers load
+    private static void writeCentroids(FileSystem fs, Path centroidsPath, List<Point> centroids) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(centroidsPath, true), StandardCharsets.UTF_8))) {
+            for (Point centroid : centroids) {
+                bw.write(centroid.toString() + "\n");
+            }
+        }
+        CentroidTable.write(fs, new Path(centroidsPath.getParent(), CentroidTable.CACHE_NAME), centroids);
+    }
+
+    // Largest distance any centroid moved between two iterations
+    private static double maxShift(List<Point> previous, List<Point> updated) {
+        double shift = 0;
+        for (int i = 0; i < previous.size(); i++) {
+            shift = Math.max(shift, Point.euclideanDistance(previous.get(i), updated.get(i)));
+        }
+        return shift;
+    }
+
+    // Sum of the per-cluster SSE lines ("clusterId<TAB>sse") written by the reducers
+    private static double readSse(Path outputDir, FileSystem fs) throws IOException {
+        double sse = 0;
+        for (FileStatus status : fs.globStatus(new Path(outputDir, SSE_OUTPUT + "-r-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    sse += Double.parseDouble(line.split("\t")[1]);
+                }
+            }
+        }
+        return sse;
+    }
+
+    private static List<Point> initializeCentroids(int k, List<Point> dataPoints, Random random) {
+        List<Point> centroids = new ArrayList<>();
+
+        for (int i = 0; i < k; i++) {
+            int randomIndex = random.nextInt(dataPoints.size());
+            centroids.add(dataPoints.get(randomIndex));
+        }
+
+        return centroids;
+    }
+
+    // k-means++ seeding: each next centroid is drawn with probability weight * d^2 to the nearest chosen one.
+    // weights may be null for unweighted points.
+    private static List<Point> initializeCentroidsPlusPlus(int k, List<Point> points, long[] weights, Random random) {
+        List<Point> centroids = new ArrayList<>();
+        int n = points.size();
+        double[] minDistances = new double[n];
+        double[] scores = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            minDistances[i] = Double.MAX_VALUE;
+            scores[i] = weights == null ? 1 : weights[i];
+        }
+        centroids.add(points.get(sampleIndex(scores, random)));
+
+        while (centroids.size() < k) {
+            Point last = centroids.get(centroids.size() - 1);
+            for (int i = 0; i < n; i++) {
+                minDistances[i] = Math.min(minDistances[i], Point.squaredDistance(points.get(i), last));
+                scores[i] = (weights == null ? 1 : weights[i]) * minDistances[i];
+            }
+            centroids.add(points.get(sampleIndex(scores, random)));
+        }
+
+        return centroids;
+    }
+
+    // Index drawn proportionally to scores, uniform if every score is zero
+    private static int sampleIndex(double[] scores, Random random) {
+        double total = 0;
+        for (double score : scores) {
+            total += score;
+        }
+        if (total <= 0) {
+            return random.nextInt(scores.length);
+        }
+
+        double target = random.nextDouble() * total;
+        for (int i = 0; i < scores.length; i++) {
+            target -= scores[i];
+            if (target < 0) {
+                return i;
+            }
+        }
+        return scores.length - 1;
+    }
+
+    // k-means|| (Bahmani et al.): a few MapReduce rounds oversample candidates with probability
+    // proportional to d^2, then the weighted candidates are reduced to k with k-means++ in the driver.
+    // Only the candidates (about init_rounds * init_oversampling points) are held in memory.
+    private static List<Point> initializeCentroidsParallel(Configuration conf, int k, Path input, boolean binaryInput,
+            Random random) throws Exception {
+        FileSystem fs = FileSystem.get(conf);
+        Path seedDir = new Path(conf.get("output") + "/_seeding");
+        Path candidatesPath = new Path(seedDir, "candidates.txt");
+        int rounds = conf.getInt("init_rounds", 2);
+        double oversampling = conf.getDouble("init_oversampling", 2.0 * k);
+        fs.delete(seedDir, true);
+
+        // One uniformly random point to start from
+        Job pickJob = createSeedingJob(conf, "pick", input, new Path(seedDir, "pick"), binaryInput, random);
+        pickJob.setMapperClass(RandomPointMapper.class);
+        pickJob.setMapOutputKeyClass(DoubleWritable.class);
+        pickJob.setMapOutputValueClass(PointWritable.class);
+        pickJob.setReducerClass(RandomPointReducer.class);
+        pickJob.setNumReduceTasks(1);
+        runSeedingJob(pickJob);
+        List<Point> candidates = readPoints(fs, new Path(seedDir, "pick"));
+
+        for (int round = 1; round <= rounds; round++) {
+            writeCentroids(fs, candidatesPath, candidates);
+
+            Path costDir = new Path(seedDir, "cost_" + round);
+            Job costJob = createSeedingJob(conf, "cost_" + round, input, costDir, binaryInput, random);
+            costJob.setMapperClass(SeedCostMapper.class);
+            costJob.setMapOutputKeyClass(NullWritable.class);
+            costJob.setMapOutputValueClass(DoubleWritable.class);
+            costJob.setReducerClass(DoubleSumReducer.class);
+            costJob.setOutputValueClass(DoubleWritable.class);
+            costJob.setNumReduceTasks(1);
+            runSeedingJob(costJob);
+            double cost = readCost(fs, costDir);
+            if (cost <= 0) {
+                break; // Every point already coincides with a candidate
+            }
+
+            Path sampleDir = new Path(seedDir, "sample_" + round);
+            Job sampleJob = createSeedingJob(conf, "sample_" + round, input, sampleDir, binaryInput, random);
+            sampleJob.getConfiguration().setDouble("seed_cost", cost);
+            sampleJob.getConfiguration().setDouble("seed_oversampling", oversampling);
+            sampleJob.setMapperClass(SeedSampleMapper.class);
+            sampleJob.setNumReduceTasks(0);
+            runSeedingJob(sampleJob);
+            candidates.addAll(readPoints(fs, sampleDir));
+        }
+
+        // Weight each candidate by the number of points closest to it
+        writeCentroids(fs, candidatesPath, candidates);
+        Path weightDir = new Path(seedDir, "weight");
+        Job weightJob = createSeedingJob(conf, "weight", input, weightDir, binaryInput, random);
+        weightJob.setMapperClass(SeedWeightMapper.class);
+        weightJob.setMapOutputKeyClass(IntWritable.class);
+        weightJob.setMapOutputValueClass(LongWritable.class);
+        weightJob.setReducerClass(LongSumReducer.class);
+        weightJob.setOutputKeyClass(IntWritable.class);
+        weightJob.setOutputValueClass(LongWritable.class);
+        runSeedingJob(weightJob);
+
+        long[] weights = new long[candidates.size()];
+        for (FileStatus status : fs.globStatus(new Path(weightDir, "part-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    weights[Integer.parseInt(parts[0])] = Long.parseLong(parts[1]);
+                }
+            }
+        }
+
+        return initializeCentroidsPlusPlus(k, candidates, weights, random);
+    }
+
+    private static Job createSeedingJob(Configuration conf, String name, Path input, Path output, boolean binaryInput,
+            Random random) throws IOException {
+        Job job = Job.getInstance(conf, "KMeans seeding " + name);
+        job.setJarByClass(KMeans.class);
+        job.getConfiguration().set("seed_candidates", conf.get("output") + "/_seeding/candidates.txt");
+        job.getConfiguration().setLong("seed_salt", random.nextLong());
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(PointWritable.class);
+        setPointInputFormat(job, binaryInput);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+        TextOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    private static void runSeedingJob(Job job) throws Exception {
+        if (!job.waitForCompletion(true)) {
+            System.err.println(job.getJobName() + " failed");
+            System.exit(1);
+        }
+    }
+
+    private static double readCost(FileSystem fs, Path outputDir) throws IOException {
+        double cost = 0;
+        for (FileStatus status : fs.globStatus(new Path(outputDir, "part-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    cost += Double.parseDouble(line.trim());
+                }
+            }
+        }
+        return cost;
+    }
+
+    // Whitespace separated point lines of a single file, or of all part files when given a job output directory
+    private static List<Point> readPoints(FileSystem fs, Path path) throws IOException {
+        List<Point> points = new ArrayList<>();
+        FileStatus[] files = fs.getFileStatus(path).isDirectory()
+                ? fs.globStatus(new Path(path, "part-*"))
+                : new FileStatus[] { fs.getFileStatus(path) };
+
+        for (FileStatus status : files) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        points.add(Point.fromString(line));
+                    }
+                }
+            }
+        }
+
+        return points;
+    }
+
+    private static List<Point> readDataPoints(String inputFile, boolean binaryInput, int dimension)
+            throws IOException {
+        List<Point> dataPoints = new ArrayList<>();
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.get(conf);
+        Path inputPath = new Path(inputFile);
+
+        if (binaryInput && fs instanceof LocalFileSystem && fs.getFileStatus(inputPath).getLen() <= Integer.MAX_VALUE) {
+            // Local file: map it and decode the doubles without a copy through a stream buffer
+            File file = ((LocalFileSystem) fs).pathToFile(inputPath);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                DoubleBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                while (values.remaining() >= dimension) {
+                    double[] coords = new double[dimension];
+                    values.get(coords);
+                    dataPoints.add(new Point(coords));
+                }
+            }
+            return dataPoints;
+        }
+        if (binaryInput) {
+            byte[] record = new byte[Double.BYTES * dimension];
+            ByteBuffer buffer = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(inputPath)))) {
+                long records = fs.getFileStatus(inputPath).getLen() / record.length;
+                for (long i = 0; i < records; i++) {
+                    in.readFully(record);
+                    double[] coords = new double[dimension];
+                    for (int d = 0; d < dimension; d++) {
+                        coords[d] = buffer.getDouble(d * Double.BYTES);
+                    }
+                    dataPoints.add(new Point(coords));
+                }
+            }
+            return dataPoints;
+        }
+
+        long skipped = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(inputPath), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = br.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    // The map tasks skip the same lines, under the PARSE_FAILURES counter
+                    try {
+                        Point point = Point.fromString(line);
+                        if (dataPoints.isEmpty() || point.dimension() == dataPoints.get(0).dimension()) {
+                            dataPoints.add(point);
+                            continue;
+                        }
+                    } catch (NumberFormatException e) {
+                        // Counted below
+                    }
+                    skipped++;
+                }
+            }
+        }
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " lines of " + inputFile + " that are not points");
+        }
+
+        return dataPoints;
+    }
+
+    // Number of values of the first line of a text points file (or of the first file of a directory) that
+    // parses into a point
+    private static int readTextDimension(Path path, FileSystem fs) throws IOException {
+        if (fs.getFileStatus(path).isDirectory()) {
+            for (FileStatus status : fs.listStatus(path)) {
+                String name = status.getPath().getName();
+                if (status.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+                    return readTextDimension(status.getPath(), fs);
+                }
+            }
+            throw new IOException("No input files in " + path);
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    try {
+                        return Point.fromString(line).dimension();
+                    } catch (NumberFormatException e) {
+                        // A header, try the next line
+                    }
+                }
+            }
+        }
+        throw new IOException("No point in " + path);
+    }
+
+    // Dimension sidecar ("<file>.dim") that CSVReader writes next to a binary points file
+    private static int readDimension(Path dimensionPath, FileSystem fs) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(dimensionPath), StandardCharsets.UTF_8))) {
+            return Integer.parseInt(br.readLine().trim());
+        }
+    }
+
+    // Mini-batch update from the "clusterId<TAB>x y<TAB>count" lines of the batch: with m batch points of
+    // mean b, a centroid c that has absorbed n points becomes c + m / (n + m) * (b - c), the per-point
+    // learning rate 1/n applied to the whole batch at once. A centroid without batch points stays put.
+    private static List<Point> updateCentroidsMiniBatch(Path outputDir, FileSystem fs, List<Point> previous,
+            long[] absorbed) throws IOException {
+        List<Point> centroids = new ArrayList<>(previous);
+
+        for (FileStatus status : fs.globStatus(new Path(outputDir, "part-r-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    int id = Integer.parseInt(parts[0]);
+                    long batchCount = Long.parseLong(parts[2]);
+                    absorbed[id] += batchCount;
+                    double rate = (double) batchCount / absorbed[id];
+
+                    double[] coords = previous.get(id).coords.clone();
+                    double[] batchMean = Point.fromString(parts[1]).coords;
+                    for (int d = 0; d < coords.length; d++) {
+                        coords[d] += rate * (batchMean[d] - coords[d]);
+                    }
+                    centroids.set(id, new Point(coords));
+                }
+            }
+        }
+
+        return centroids;
+    }
+
+    // Read "clusterId<TAB>x y" lines from every reducer; a cluster that got no points keeps its centroid
+    private static List<Point> updateCentroids(Path outputDir, FileSystem fs, List<Point> previous)
+            throws IOException {
+        List<Point> centroids = new ArrayList<>(previous);
+
+        for (FileStatus status : fs.globStatus(new Path(outputDir, "part-r-*"))) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    centroids.set(Integer.parseInt(parts[0]), Point.fromString(parts[1]));
+                }
+            }
+        }
+
+        return centroids;
+    }
+}